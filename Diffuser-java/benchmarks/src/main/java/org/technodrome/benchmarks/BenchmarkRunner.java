@@ -0,0 +1,39 @@
+package org.technodrome.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmark suites with the allocation profiler and writes the results to jmh-result.json, the CPU
+ * baseline later changes are compared against.
+ * <p>
+ * The module is only in the reactor under the benchmarks profile, so the default build does not need JMH. Build
+ * it with {@code mvn -Pbenchmarks package} and run {@code java -jar benchmarks/target/benchmarks.jar [regex...]},
+ * the regexes selecting benchmarks (all by default). Every suite reports throughput and, from its
+ * sample-time mode, latency percentiles; the profiler adds the JVM heap allocation rate (gc.alloc.rate.norm).
+ * Native tensor memory is not on the heap and is kept flat by closing a sub-manager per invocation.
+ */
+public final class BenchmarkRunner {
+
+    private BenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .addProfiler(GCProfiler.class)
+                .jvmArgsAppend("--add-modules", "jdk.incubator.vector")
+                .resultFormat(ResultFormatType.JSON)
+                .result("jmh-result.json");
+        if (args.length == 0) {
+            options.include(BenchmarkRunner.class.getPackageName() + ".*");
+        }
+        for (String regex : args) {
+            options.include(regex);
+        }
+        new Runner(options.build()).run();
+    }
+}
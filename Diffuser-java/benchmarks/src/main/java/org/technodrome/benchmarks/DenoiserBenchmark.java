@@ -0,0 +1,76 @@
+package org.technodrome.benchmarks;
+
+import ai.djl.Device;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.technodrome.diffuser.SimpleMlpDenoiser;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One inference forward pass of {@link SimpleMlpDenoiser} over (B, H, D) trajectories, on CPU.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class DenoiserBenchmark {
+
+    @Param({"1", "64", "256"})
+    public int batchSize;
+
+    @Param({"32", "128"})
+    public int horizon;
+
+    @Param({"14", "40"})
+    public int transitionDim;
+
+    private static final int T_EMBED_DIM = 32;
+    private static final int TIMESTEPS = 1000;
+
+    private NDManager manager;
+    private SimpleMlpDenoiser denoiser;
+    private NDArray x;
+    private NDArray t;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        manager = NDManager.newBaseManager(Device.cpu());
+        denoiser = new SimpleMlpDenoiser(manager, transitionDim, T_EMBED_DIM, TIMESTEPS);
+        denoiser.getBlock().initialize(manager, DataType.FLOAT32, new Shape(1, transitionDim + T_EMBED_DIM));
+        x = manager.randomNormal(new Shape(batchSize, horizon, transitionDim));
+        t = manager.randomInteger(0, TIMESTEPS, new Shape(batchSize), DataType.INT64);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        manager.close();
+    }
+
+    @Benchmark
+    public void forward(Blackhole blackhole) {
+        try (NDManager scope = manager.newSubManager()) {
+            scope.tempAttachAll(x, t);
+            NDArray output = denoiser.forward(x, null, t, false);
+            blackhole.consume(output.getFloat(0, 0, 0));
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package org.technodrome.benchmarks;
+
+import ai.djl.Device;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.technodrome.diffuser.diffusion.helpers.NDUtils;
+import org.technodrome.diffuser.diffusion.helpers.NoiseSchedule;
+import org.technodrome.diffuser.diffusion.helpers.NoiseScheduleRegistry;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The coefficient gathers and conditioning helpers of {@link NDUtils}, and the packed schedule table behind them,
+ * on CPU.
+ * <p>
+ * {@link #extractAll} gathers all {@link NoiseSchedule#COEFFICIENTS} coefficients of a batch's timesteps from the
+ * packed (timesteps, COEFFICIENTS) table at once; {@link #extractEach} is the per-coefficient path it replaced,
+ * one {@link NDUtils#extract} per column. Every invocation works in a sub-manager closed before it returns, so
+ * native memory stays flat over a run.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class NDUtilsBenchmark {
+
+    @Param({"32", "256"})
+    public int batchSize;
+
+    @Param({"32", "128"})
+    public int horizon;
+
+    @Param({"1000"})
+    public int timesteps;
+
+    private static final int OBSERVATION_DIM = 11;
+    private static final int ACTION_DIM = 3;
+
+    private NDManager manager;
+    private NoiseScheduleRegistry registry;
+    private NoiseScheduleRegistry.DeviceSchedule schedule;
+    private NDArray table;
+    private NDArray[] columns;
+    private NDArray t;
+    private NDArray x;
+    private NDArray condition;
+    private Shape xShape;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        manager = NDManager.newBaseManager(Device.cpu());
+        registry = new NoiseScheduleRegistry(1);
+        schedule = registry.acquire(NoiseSchedule.Type.COSINE, timesteps, Device.cpu());
+        table = schedule.coefficients();
+        columns = new NDArray[NoiseSchedule.COEFFICIENTS];
+        for (int k = 0; k < columns.length; k++) {
+            columns[k] = table.get(new NDIndex(":, {}", k));
+            columns[k].attach(manager);
+        }
+        t = manager.randomInteger(0, timesteps, new Shape(batchSize), DataType.INT64);
+        xShape = new Shape(batchSize, horizon, OBSERVATION_DIM + ACTION_DIM);
+        x = manager.randomNormal(xShape);
+        condition = manager.randomNormal(new Shape(batchSize, OBSERVATION_DIM));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        registry.release(schedule);
+        manager.close();
+    }
+
+    @Benchmark
+    public void extractAll(Blackhole blackhole) {
+        try (NDManager scope = manager.newSubManager()) {
+            // extractAll leaves its outputs on the manager of t, so lend t to the scope
+            scope.tempAttachAll(t);
+            NDList coefficients = NDUtils.extractAll(table, t, xShape);
+            blackhole.consume(coefficients.get(NoiseSchedule.POSTERIOR_VARIANCE).getFloat(0, 0, 0));
+        }
+    }
+
+    @Benchmark
+    public void extractEach(Blackhole blackhole) {
+        try (NDManager scope = manager.newSubManager()) {
+            // intermediates land on the inputs' manager, so lend the inputs to the scope
+            scope.tempAttachAll(columns);
+            scope.tempAttachAll(t);
+            NDArray last = null;
+            for (NDArray column : columns) {
+                last = NDUtils.extract(column, t, xShape);
+            }
+            blackhole.consume(last.getFloat(0, 0, 0));
+        }
+    }
+
+    /**
+     * Conditions the first and last timestep of a copy of the plan, in place; the copy is part of the measurement.
+     */
+    @Benchmark
+    public void applyConditioning(Blackhole blackhole) {
+        try (NDManager scope = manager.newSubManager()) {
+            NDArray plan = x.duplicate();
+            plan.attach(scope);
+            scope.tempAttachAll(condition);
+            NDArray conditioned = NDUtils.applyConditioning(plan, Map.of(0, condition, horizon - 1, condition),
+                    ACTION_DIM);
+            blackhole.consume(conditioned.getFloat(0, 0, 0));
+        }
+    }
+
+    /**
+     * The host schedule every packed table is built from, computed in double precision.
+     */
+    @Benchmark
+    public NoiseSchedule hostSchedule() {
+        return new NoiseSchedule(NoiseSchedule.Type.COSINE, timesteps);
+    }
+
+    /**
+     * The packed table as a model acquires it from the registry when it is constructed, a cache hit after the
+     * first call.
+     */
+    @Benchmark
+    public void acquireCoefficientTable(Blackhole blackhole) {
+        NoiseScheduleRegistry.DeviceSchedule acquired = registry.acquire(NoiseSchedule.Type.COSINE, timesteps,
+                Device.cpu());
+        blackhole.consume(acquired.coefficients());
+        registry.release(acquired);
+    }
+}
@@ -0,0 +1,114 @@
+package org.technodrome.benchmarks;
+
+import ai.djl.Device;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.technodrome.diffuser.SimpleMlpDenoiser;
+import org.technodrome.diffuser.diffusion.GaussianDiffusion;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link GaussianDiffusion} sampling on CPU: a single denoising step, and whole DDPM and DDIM loops.
+ * <p>
+ * The condition is copied into a fresh sub-manager per invocation, which is where the samples are created,
+ * so each invocation frees what it allocates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SamplingBenchmark {
+
+    @Param({"1", "64"})
+    public int batchSize;
+
+    @Param({"32"})
+    public int horizon;
+
+    @Param({"100"})
+    public int timesteps;
+
+    @Param({"10"})
+    public int ddimSteps;
+
+    private static final int OBSERVATION_DIM = 11;
+    private static final int ACTION_DIM = 3;
+    private static final int T_EMBED_DIM = 32;
+
+    private NDManager manager;
+    private GaussianDiffusion diffusion;
+    private NDArray condition;
+    private Shape shape;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        manager = NDManager.newBaseManager(Device.cpu());
+        int transitionDim = OBSERVATION_DIM + ACTION_DIM;
+        SimpleMlpDenoiser denoiser = new SimpleMlpDenoiser(manager, transitionDim, T_EMBED_DIM, timesteps);
+        denoiser.getBlock().initialize(manager, DataType.FLOAT32, new Shape(1, transitionDim + T_EMBED_DIM));
+        diffusion = new GaussianDiffusion(denoiser, horizon, OBSERVATION_DIM, ACTION_DIM, timesteps, "l2",
+                true, false, 10.0, 1.0, null, Device.cpu());
+        condition = manager.randomNormal(new Shape(batchSize, OBSERVATION_DIM));
+        shape = new Shape(batchSize, horizon, transitionDim);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        diffusion.close();
+        manager.close();
+    }
+
+    /**
+     * One deterministic step from the middle of the schedule, including the per-call setup of a sampling loop.
+     */
+    @Benchmark
+    public void denoisingStep(Blackhole blackhole) {
+        try (NDManager scope = manager.newSubManager()) {
+            GaussianDiffusion.Sample sample = diffusion.ddimSampleLoop(shape, conditions(scope),
+                    new int[]{timesteps / 2}, 0.0, false);
+            blackhole.consume(sample.trajectories().getFloat(0, 0, 0));
+        }
+    }
+
+    @Benchmark
+    public void ddpmLoop(Blackhole blackhole) {
+        try (NDManager scope = manager.newSubManager()) {
+            GaussianDiffusion.Sample sample = diffusion.pSampleLoop(shape, conditions(scope), false);
+            blackhole.consume(sample.trajectories().getFloat(0, 0, 0));
+        }
+    }
+
+    @Benchmark
+    public void ddimLoop(Blackhole blackhole) {
+        try (NDManager scope = manager.newSubManager()) {
+            GaussianDiffusion.Sample sample = diffusion.ddimSampleLoop(shape, conditions(scope), ddimSteps, 0.0, false);
+            blackhole.consume(sample.trajectories().getFloat(0, 0, 0));
+        }
+    }
+
+    private Map<Integer, NDArray> conditions(NDManager scope) {
+        NDArray copy = condition.duplicate();
+        copy.attach(scope);
+        return Map.of(0, copy);
+    }
+}
@@ -4,10 +4,12 @@ import ai.djl.ndarray.NDArray;
 import ai.djl.ndarray.NDArrays;
 import ai.djl.ndarray.NDList;
 import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
 import ai.djl.ndarray.types.DataType;
 import ai.djl.ndarray.types.Shape;
 import ai.djl.nn.Activation;
 import ai.djl.nn.Block;
+import ai.djl.nn.BlockList;
 import ai.djl.nn.SequentialBlock;
 import ai.djl.nn.core.Linear;
 import ai.djl.training.ParameterStore;
@@ -18,8 +20,16 @@ public final class SimpleMlpDenoiser implements Denoiser {
     private final ParameterStore ps;
     private final int transitionDim;
     private final int tEmbedDim;
+    private final NDArray timeEmbeddings;  // (timesteps, tEmbedDim), or null to compute them per call
 
     public SimpleMlpDenoiser(NDManager manager, int transitionDim, int tEmbedDim) {
+        this(manager, transitionDim, tEmbedDim, 0);
+    }
+
+    /**
+     * @param timesteps the number of diffusion timesteps, used to precompute the timestep embedding table
+     */
+    public SimpleMlpDenoiser(NDManager manager, int transitionDim, int tEmbedDim, int timesteps) {
         this.transitionDim = transitionDim;
         this.tEmbedDim = tEmbedDim;
 
@@ -33,34 +43,65 @@ public final class SimpleMlpDenoiser implements Denoiser {
 
         // ParameterStore created by trainer typically; placeholder here
         this.ps = new ParameterStore(manager, false);
+
+        this.timeEmbeddings = timesteps > 0
+                ? sinusoidalTimeEmbedding(manager.arange(timesteps).toType(DataType.FLOAT32, false), tEmbedDim)
+                : null;
     }
 
     @Override
     public NDArray forward(NDArray x, Object condUnused, NDArray t, boolean training) {
         // x: (B,H,D), t: (B,)
-        NDManager m = x.getManager();
         Shape xs = x.getShape();
         long B = xs.get(0);
         long H = xs.get(1);
         long D = xs.get(2);
 
         // 1) timestep embedding: (B, tEmbedDim)
-        NDArray tEmb = sinusoidalTimeEmbedding(t.toType(DataType.FLOAT32, false), tEmbedDim);
+        NDArray tEmb = timeEmbedding(t);
+
+        // 2) the first layer applied to [x, tEmb] is W_x x + (W_t tEmb + b); the second term is the same for
+        //    all H rows of a batch element, so it is computed per batch element and added as a bias
+        Block first = mlp.getChildren().get(0).getValue();
+        NDArray weight = ps.getValue(first.getParameters().get("weight"), x.getDevice(), training);
+        NDArray bias = ps.getValue(first.getParameters().get("bias"), x.getDevice(), training);
+        NDArray timeBias = Linear.linear(tEmb, weight.get(new NDIndex(":, {}:", D)), bias).singletonOrThrow();
+        NDArray h = Linear.linear(x, weight.get(new NDIndex(":, :{}", D))).singletonOrThrow(); // (B,H,hidden)
+        h = h.add(timeBias.reshape(B, 1, -1));
+
+        // 3) the rest of the MLP
+        NDList hidden = new NDList(h);
+        BlockList children = mlp.getChildren();
+        for (int i = 1; i < children.size(); i++) {
+            hidden = children.get(i).getValue().forward(ps, hidden, training);
+        }
 
-        // 2) expand to (B,H,tEmbedDim)
-        tEmb = tEmb.reshape(B, 1, tEmbedDim).broadcast(new Shape(B, H, tEmbedDim));
+        // 4) reshape back (B,H,D)
+        return hidden.singletonOrThrow().reshape(B, H, D);
+    }
 
-        // 3) concat: (B,H,D+tEmbedDim)
-        NDArray inp = NDArrays.concat(new NDList(x, tEmb), -1);
+    /**
+     * (B, tEmbedDim), gathered from the precomputed table when there is one.
+     */
+    private NDArray timeEmbedding(NDArray t) {
+        if (timeEmbeddings == null) {
+            return sinusoidalTimeEmbedding(t.toType(DataType.FLOAT32, false), tEmbedDim);
+        }
+        NDArray emb = timeEmbeddings.get(new NDIndex("{}", t.toType(DataType.INT64, false)));
+        emb.attach(t.getManager());
+        return emb;
+    }
 
-        // 4) flatten to (B*H, D+tEmbedDim)
-        NDArray flat = inp.reshape(B * H, D + tEmbedDim);
+    public Block getBlock() {
+        return mlp;
+    }
 
-        // 5) MLP
-        NDArray outFlat = mlp.forward(ps, new NDList(flat), training).singletonOrThrow();
+    public int getTransitionDim() {
+        return transitionDim;
+    }
 
-        // 6) reshape back (B,H,D)
-        return outFlat.reshape(B, H, D);
+    public int getTEmbedDim() {
+        return tEmbedDim;
     }
 
     /**
@@ -0,0 +1,215 @@
+package org.technodrome.diffuser;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.nn.Block;
+import ai.djl.nn.core.Linear;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An inference-only copy of {@link SimpleMlpDenoiser} that runs on the JVM with the Vector API.
+ * <p>
+ * The weights of the three Linear layers are held in primitive arrays, and the forward pass uses SIMD dot
+ * products with per-thread scratch buffers, so {@link #forward(float[], long[], int, int, float[])} does not
+ * allocate and needs no engine at all. The timestep embedding is identical for every row of a batch element,
+ * so its share of the first layer is computed once per batch element and added as a bias.
+ * <p>
+ * Needs {@code --add-modules jdk.incubator.vector} at run time.
+ */
+public final class VectorMlpDenoiser implements Denoiser {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    private final int transitionDim;
+    private final int tEmbedDim;
+    private final int hidden1;
+    private final int hidden2;
+    private final float[] w1x;          // (hidden1, transitionDim)
+    private final float[] w1t;          // (hidden1, tEmbedDim)
+    private final float[] b1;
+    private final float[] w2;           // (hidden2, hidden1)
+    private final float[] b2;
+    private final float[] w3;           // (transitionDim, hidden2)
+    private final float[] b3;
+    private final float[] frequencies;  // (tEmbedDim / 2)
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * Weights are row-major (units, inputs), as stored by DJL's Linear.
+     *
+     * @param w1 (hidden1, transitionDim + tEmbedDim), with the transition inputs first
+     * @param w2 (hidden2, hidden1)
+     * @param w3 (transitionDim, hidden2)
+     */
+    public VectorMlpDenoiser(int transitionDim, int tEmbedDim,
+                             float[] w1, float[] b1,
+                             float[] w2, float[] b2,
+                             float[] w3, float[] b3) {
+        this.transitionDim = transitionDim;
+        this.tEmbedDim = tEmbedDim;
+        this.hidden1 = b1.length;
+        this.hidden2 = b2.length;
+        int inputs = transitionDim + tEmbedDim;
+        if (w1.length != hidden1 * inputs || w2.length != hidden2 * hidden1
+                || w3.length != transitionDim * hidden2 || b3.length != transitionDim) {
+            throw new IllegalArgumentException("Weight shapes do not match transitionDim " + transitionDim
+                    + ", tEmbedDim " + tEmbedDim + " and hidden sizes " + hidden1 + ", " + hidden2);
+        }
+
+        // split the first layer into its transition and timestep columns
+        this.w1x = new float[hidden1 * transitionDim];
+        this.w1t = new float[hidden1 * tEmbedDim];
+        for (int o = 0; o < hidden1; o++) {
+            System.arraycopy(w1, o * inputs, w1x, o * transitionDim, transitionDim);
+            System.arraycopy(w1, o * inputs + transitionDim, w1t, o * tEmbedDim, tEmbedDim);
+        }
+        this.b1 = b1.clone();
+        this.w2 = w2.clone();
+        this.b2 = b2.clone();
+        this.w3 = w3.clone();
+        this.b3 = b3.clone();
+
+        // exp(-log(10000) * i/(half-1)), as in SimpleMlpDenoiser
+        int half = tEmbedDim / 2;
+        this.frequencies = new float[half];
+        for (int i = 0; i < half; i++) {
+            frequencies[i] = (float) Math.exp((float) i * (float) (-Math.log(10000.0) / Math.max(half - 1, 1)));
+        }
+    }
+
+    /**
+     * Copy the trained weights of an initialized SimpleMlpDenoiser.
+     */
+    public static VectorMlpDenoiser fromSimpleMlp(SimpleMlpDenoiser source) {
+        List<float[]> weights = new ArrayList<>();
+        List<float[]> biases = new ArrayList<>();
+        for (Block child : source.getBlock().getChildren().values()) {
+            if (child instanceof Linear) {
+                weights.add(child.getParameters().get("weight").getArray().toFloatArray());
+                biases.add(child.getParameters().get("bias").getArray().toFloatArray());
+            }
+        }
+        if (weights.size() != 3) {
+            throw new IllegalArgumentException("Expected 3 Linear layers, found " + weights.size());
+        }
+        return new VectorMlpDenoiser(source.getTransitionDim(), source.getTEmbedDim(),
+                weights.get(0), biases.get(0),
+                weights.get(1), biases.get(1),
+                weights.get(2), biases.get(2));
+    }
+
+    @Override
+    public NDArray forward(NDArray x, Object condUnused, NDArray t, boolean training) {
+        if (training) {
+            throw new UnsupportedOperationException("VectorMlpDenoiser is inference only");
+        }
+        Shape xs = x.getShape();
+        int batch = (int) xs.get(0);
+        int horizon = (int) xs.get(1);
+        int size = batch * horizon * transitionDim;
+
+        float[] out = scratch.get().output(size);
+        forward(x.toFloatArray(), t.toType(DataType.INT64, false).toLongArray(), batch, horizon, out);
+        return x.getManager().create(FloatBuffer.wrap(out, 0, size), xs);
+    }
+
+    /**
+     * The forward pass on primitive arrays.
+     *
+     * @param x       (batch, horizon, transitionDim), row-major
+     * @param t       (batch,) timesteps
+     * @param batch   B
+     * @param horizon H
+     * @param out     receives the (batch, horizon, transitionDim) prediction, row-major
+     */
+    public void forward(float[] x, long[] t, int batch, int horizon, float[] out) {
+        Scratch s = scratch.get();
+        for (int b = 0; b < batch; b++) {
+            // the timestep's contribution to the first layer, shared by all H rows
+            embed(t[b], s.embedding);
+            for (int o = 0; o < hidden1; o++) {
+                s.timeBias[o] = b1[o] + dot(w1t, o * tEmbedDim, s.embedding, 0, tEmbedDim);
+            }
+
+            for (int h = 0; h < horizon; h++) {
+                int row = (b * horizon + h) * transitionDim;
+                for (int o = 0; o < hidden1; o++) {
+                    s.firstLayer[o] = s.timeBias[o] + dot(w1x, o * transitionDim, x, row, transitionDim);
+                }
+                swish(s.firstLayer, hidden1);
+                for (int o = 0; o < hidden2; o++) {
+                    s.secondLayer[o] = b2[o] + dot(w2, o * hidden1, s.firstLayer, 0, hidden1);
+                }
+                swish(s.secondLayer, hidden2);
+                for (int o = 0; o < transitionDim; o++) {
+                    out[row + o] = b3[o] + dot(w3, o * hidden2, s.secondLayer, 0, hidden2);
+                }
+            }
+        }
+    }
+
+    private void embed(long t, float[] embedding) {
+        int half = frequencies.length;
+        for (int i = 0; i < half; i++) {
+            float arg = (float) t * frequencies[i];
+            embedding[i] = (float) Math.cos(arg);
+            embedding[half + i] = (float) Math.sin(arg);
+        }
+        if (tEmbedDim % 2 == 1) {
+            embedding[tEmbedDim - 1] = 0f;
+        }
+    }
+
+    private static float dot(float[] a, int aOffset, float[] b, int bOffset, int n) {
+        FloatVector acc = FloatVector.zero(SPECIES);
+        int i = 0;
+        int upper = SPECIES.loopBound(n);
+        for (; i < upper; i += SPECIES.length()) {
+            FloatVector va = FloatVector.fromArray(SPECIES, a, aOffset + i);
+            FloatVector vb = FloatVector.fromArray(SPECIES, b, bOffset + i);
+            acc = va.fma(vb, acc);
+        }
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < n; i++) {
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+        return sum;
+    }
+
+    /**
+     * x * sigmoid(x), in place.
+     */
+    private static void swish(float[] h, int n) {
+        int i = 0;
+        int upper = SPECIES.loopBound(n);
+        for (; i < upper; i += SPECIES.length()) {
+            FloatVector v = FloatVector.fromArray(SPECIES, h, i);
+            v.div(v.neg().lanewise(VectorOperators.EXP).add(1f)).intoArray(h, i);
+        }
+        for (; i < n; i++) {
+            h[i] = h[i] / (1f + (float) Math.exp(-h[i]));
+        }
+    }
+
+    private final class Scratch {
+        private final float[] embedding = new float[tEmbedDim];
+        private final float[] timeBias = new float[hidden1];
+        private final float[] firstLayer = new float[hidden1];
+        private final float[] secondLayer = new float[hidden2];
+        private float[] output = new float[0];
+
+        private float[] output(int size) {
+            if (output.length < size) {
+                output = new float[size];
+            }
+            return output;
+        }
+    }
+}
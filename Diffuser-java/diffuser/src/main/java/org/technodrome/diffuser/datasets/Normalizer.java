@@ -0,0 +1,339 @@
+package org.technodrome.diffuser.datasets;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Per-dimension affine normalization of transitions laid out as [action, observation].
+ * <p>
+ * Statistics (mean, std, min, max) are computed in one parallel pass over a {@link SequenceDataset}, each chunk
+ * of transitions accumulating Welford moments that are then merged, and cached in a file next to the dataset so
+ * later runs load them instead of rescanning. {@link Mode#LIMITS} maps every dimension to [-1, 1], as diffusion
+ * models expect, and {@link Mode#GAUSSIAN} to zero mean and unit variance.
+ * <p>
+ * Both directions are one fused affine map per dimension, so whole (B, H, transitionDim) batches are
+ * (un)normalized in two tensor operations.
+ */
+public final class Normalizer {
+
+    private static final Logger logger = LoggerFactory.getLogger(Normalizer.class);
+
+    public static final String CACHE_SUFFIX = ".norm";
+    private static final int MAGIC = 0x4e4f524d; // "NORM"
+    private static final int VERSION = 1;
+    private static final double EPSILON = 1e-8;
+
+    public enum Mode {
+        GAUSSIAN,
+        LIMITS
+    }
+
+    private final Mode mode;
+    private final int actionDim;
+    private final double[] mean;
+    private final double[] std;
+    private final double[] min;
+    private final double[] max;
+    private final float[] center;       // normalized = (x - center) * scale
+    private final float[] scale;
+    private final float[] inverseScale;
+
+    public Normalizer(Mode mode, int actionDim, double[] mean, double[] std, double[] min, double[] max) {
+        this.mode = mode;
+        this.actionDim = actionDim;
+        this.mean = mean.clone();
+        this.std = std.clone();
+        this.min = min.clone();
+        this.max = max.clone();
+
+        int dim = mean.length;
+        this.center = new float[dim];
+        this.scale = new float[dim];
+        this.inverseScale = new float[dim];
+        for (int d = 0; d < dim; d++) {
+            double c;
+            double range;
+            if (mode == Mode.GAUSSIAN) {
+                c = mean[d];
+                range = std[d];
+            } else {
+                c = 0.5 * (max[d] + min[d]);
+                range = 0.5 * (max[d] - min[d]);
+            }
+            if (range < EPSILON) {
+                range = 1.0;
+            }
+            center[d] = (float) c;
+            scale[d] = (float) (1.0 / range);
+            inverseScale[d] = (float) range;
+        }
+    }
+
+    /**
+     * Load the cached statistics of a prepared dataset, or compute and cache them if there are none or the
+     * dataset changed since.
+     */
+    public static Normalizer forDataset(SequenceDataset dataset, Mode mode) throws IOException {
+        Path source = dataset.getPath();
+        Path cache = source.resolveSibling(source.getFileName() + CACHE_SUFFIX);
+        Normalizer cached = load(cache, source, mode, dataset.getActionDim());
+        if (cached != null) {
+            return cached;
+        }
+
+        Normalizer computed = compute(dataset, mode, Runtime.getRuntime().availableProcessors() * 4);
+        try {
+            computed.save(cache, source);
+        } catch (IOException e) {
+            logger.warn("Could not cache normalizer statistics at {}", cache, e);
+        }
+        return computed;
+    }
+
+    /**
+     * Scan every transition of a prepared dataset, in parallel chunks.
+     */
+    public static Normalizer compute(SequenceDataset dataset, Mode mode, int chunks) {
+        int dim = dataset.getTransitionDim();
+        long rows = dataset.getTransitionCount();
+        int chunkCount = (int) Math.max(1, Math.min(chunks, rows));
+        long chunkRows = (rows + chunkCount - 1) / chunkCount;
+
+        Moments total = IntStream.range(0, chunkCount)
+                .parallel()
+                .mapToObj(chunk -> {
+                    Moments moments = new Moments(dim);
+                    float[] row = new float[dim];
+                    long end = Math.min(rows, (chunk + 1) * chunkRows);
+                    for (long r = chunk * chunkRows; r < end; r++) {
+                        dataset.getTransition(r, row, 0);
+                        moments.add(row);
+                    }
+                    return moments;
+                })
+                .reduce(new Moments(dim), Moments::merge);
+
+        if (total.count == 0) {
+            throw new IllegalArgumentException("Dataset " + dataset.getPath() + " has no transitions to normalize");
+        }
+        double[] std = new double[dim];
+        for (int d = 0; d < dim; d++) {
+            std[d] = total.count > 1 ? Math.sqrt(total.m2[d] / total.count) : 0.0;
+        }
+        return new Normalizer(mode, dataset.getActionDim(), total.mean, std, total.min, total.max);
+    }
+
+    /**
+     * Write the statistics, tagged with the size and modification time of the source dataset. The cache is
+     * replaced atomically, so readers never see a partial file.
+     */
+    public void save(Path cache, Path source) throws IOException {
+        Path temporary = cache.resolveSibling(cache.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(temporary))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(mean.length);
+            out.writeLong(Files.size(source));
+            out.writeLong(Files.getLastModifiedTime(source).toMillis());
+            for (double[] values : new double[][]{mean, std, min, max}) {
+                for (double value : values) {
+                    out.writeDouble(value);
+                }
+            }
+        }
+        Files.move(temporary, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the cached statistics, or null if there is no cache, it cannot be read, or it was written for
+     * another version of source
+     */
+    public static Normalizer load(Path cache, Path source, Mode mode, int actionDim) {
+        if (!Files.exists(cache)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(cache))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            int dim = in.readInt();
+            if (in.readLong() != Files.size(source)
+                    || in.readLong() != Files.getLastModifiedTime(source).toMillis()) {
+                return null;
+            }
+            double[][] stats = new double[4][dim];
+            for (double[] values : stats) {
+                for (int d = 0; d < dim; d++) {
+                    values[d] = in.readDouble();
+                }
+            }
+            return new Normalizer(mode, actionDim, stats[0], stats[1], stats[2], stats[3]);
+        } catch (IOException e) {
+            // e.g. a cache truncated by an interrupted save
+            logger.warn("Ignoring unreadable normalizer cache {}", cache, e);
+            return null;
+        }
+    }
+
+    /**
+     * Normalize count transitions of a row-major host array in place.
+     */
+    public void normalize(float[] transitions, int offset, int count) {
+        int dim = center.length;
+        for (int r = 0; r < count; r++) {
+            int base = offset + r * dim;
+            for (int d = 0; d < dim; d++) {
+                transitions[base + d] = (transitions[base + d] - center[d]) * scale[d];
+            }
+        }
+    }
+
+    /**
+     * @param x (..., transitionDim)
+     * @return (x - center) * scale
+     */
+    public NDArray normalize(NDArray x) {
+        return affine(x, center, scale, 0, center.length, true);
+    }
+
+    /**
+     * @param x (..., transitionDim), e.g. sampled (B, H, transitionDim) trajectories
+     * @return x / scale + center
+     */
+    public NDArray unnormalize(NDArray x) {
+        return affine(x, center, inverseScale, 0, center.length, false);
+    }
+
+    /**
+     * @param observations (..., observationDim), e.g. conditions
+     */
+    public NDArray normalizeObservations(NDArray observations) {
+        return affine(observations, center, scale, actionDim, center.length, true);
+    }
+
+    public NDArray unnormalizeObservations(NDArray observations) {
+        return affine(observations, center, inverseScale, actionDim, center.length, false);
+    }
+
+    /**
+     * @param actions (..., actionDim), e.g. the first action of a plan
+     */
+    public NDArray unnormalizeActions(NDArray actions) {
+        return affine(actions, center, inverseScale, 0, actionDim, false);
+    }
+
+    private static NDArray affine(NDArray x, float[] center, float[] factor, int from, int to, boolean normalize) {
+        NDManager manager = x.getManager();
+        int dim = to - from;
+        float[] c = new float[dim];
+        float[] f = new float[dim];
+        System.arraycopy(center, from, c, 0, dim);
+        System.arraycopy(factor, from, f, 0, dim);
+        try (NDArray centerArray = manager.create(c, new Shape(dim));
+             NDArray factorArray = manager.create(f, new Shape(dim))) {
+            if (normalize) {
+                NDArray centered = x.sub(centerArray);
+                return centered.muli(factorArray);
+            }
+            NDArray scaled = x.mul(factorArray);
+            return scaled.addi(centerArray);
+        }
+    }
+
+    /**
+     * Check that the statistics were computed for the transition layout of a model.
+     */
+    public void checkLayout(int actionDimension, int transitionDimension) {
+        if (actionDimension != actionDim || transitionDimension != center.length) {
+            throw new IllegalArgumentException("Normalizer covers actionDim " + actionDim + " of transitionDim "
+                    + center.length + ", model has " + actionDimension + " of " + transitionDimension);
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getActionDim() {
+        return actionDim;
+    }
+
+    public double[] getMean() {
+        return mean.clone();
+    }
+
+    public double[] getStd() {
+        return std.clone();
+    }
+
+    public double[] getMin() {
+        return min.clone();
+    }
+
+    public double[] getMax() {
+        return max.clone();
+    }
+
+    /**
+     * Welford moments of a stream of transitions, mergeable with Chan's parallel formula.
+     */
+    private static final class Moments {
+        private long count;
+        private final double[] mean;
+        private final double[] m2;
+        private final double[] min;
+        private final double[] max;
+
+        private Moments(int dim) {
+            this.mean = new double[dim];
+            this.m2 = new double[dim];
+            this.min = new double[dim];
+            this.max = new double[dim];
+            Arrays.fill(min, Double.POSITIVE_INFINITY);
+            Arrays.fill(max, Double.NEGATIVE_INFINITY);
+        }
+
+        private void add(float[] row) {
+            count++;
+            for (int d = 0; d < row.length; d++) {
+                double value = row[d];
+                double delta = value - mean[d];
+                mean[d] += delta / count;
+                m2[d] += delta * (value - mean[d]);
+                min[d] = Math.min(min[d], value);
+                max[d] = Math.max(max[d], value);
+            }
+        }
+
+        private static Moments merge(Moments a, Moments b) {
+            if (a.count == 0) {
+                return b;
+            }
+            if (b.count == 0) {
+                return a;
+            }
+            Moments merged = new Moments(a.mean.length);
+            merged.count = a.count + b.count;
+            for (int d = 0; d < a.mean.length; d++) {
+                double delta = b.mean[d] - a.mean[d];
+                merged.mean[d] = a.mean[d] + delta * b.count / merged.count;
+                merged.m2[d] = a.m2[d] + b.m2[d] + delta * delta * ((double) a.count * b.count / merged.count);
+                merged.min[d] = Math.min(a.min[d], b.min[d]);
+                merged.max[d] = Math.max(a.max[d], b.max[d]);
+            }
+            return merged;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package org.technodrome.diffuser.datasets;
+
+import ai.djl.ndarray.NDManager;
+import ai.djl.training.dataset.Batch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Assembles the batches of a {@link SequenceDataset} on background threads, ahead of the trainer.
+ * <p>
+ * Producer threads claim batch numbers of the epoch's window order and copy the windows from the mapped file
+ * into host buffers, which are then queued as ready. The trainer only copies a ready buffer into its two
+ * tensors and hands the buffer back. Buffers are allocated once, capacity + threads of them, and recycled
+ * round-robin through a free queue. The ready queue holds at most capacity batches, so producers block rather
+ * than allocate when the trainer falls behind, each holding at most the one buffer it is filling.
+ * <p>
+ * With several producers, batches may be delivered in a different order than the epoch's window order.
+ * Only the engine calls happen on the consuming thread.
+ */
+public final class PrefetchingBatchLoader implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PrefetchingBatchLoader.class);
+    private static final long POLL_MILLIS = 100;
+
+    private final SequenceDataset dataset;
+    private final int threads;
+    private final int capacity;
+    private final HostBatch[] buffers;
+    private final ExecutorService producers;
+    private Epoch current;
+
+    /**
+     * @param dataset  a prepared dataset
+     * @param threads  the number of producer threads
+     * @param capacity the number of ready batches kept ahead of the consumer
+     */
+    public PrefetchingBatchLoader(SequenceDataset dataset, int threads, int capacity) {
+        if (threads < 1 || capacity < 1) {
+            throw new IllegalArgumentException("threads and capacity must be positive, got " + threads + " and " + capacity);
+        }
+        this.dataset = dataset;
+        this.threads = threads;
+        this.capacity = capacity;
+        int batchSize = dataset.getBatchSize();
+        this.buffers = new HostBatch[capacity + threads];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = new HostBatch(batchSize * dataset.getHorizon() * dataset.getTransitionDim(),
+                    batchSize * dataset.getObservationDim());
+        }
+        AtomicInteger count = new AtomicInteger();
+        this.producers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "diffusion-prefetch-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start prefetching a new epoch, abandoning the previous one if it was not consumed to the end.
+     *
+     * @param manager the manager whose sub-managers the batches are created on
+     */
+    public synchronized Iterator<Batch> epoch(NDManager manager) {
+        if (producers.isShutdown()) {
+            throw new IllegalStateException("Batch loader is closed");
+        }
+        if (current != null) {
+            current.cancel();
+        }
+        current = new Epoch(manager, dataset.epochOrder());
+        current.start();
+        return current;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (current != null) {
+            current.cancel();
+            current = null;
+        }
+        producers.shutdownNow();
+    }
+
+    private final class Epoch implements Iterator<Batch> {
+        private final NDManager manager;
+        private final int[] order;
+        private final int batchSize;
+        private final int batches;
+        private final BlockingQueue<HostBatch> free = new ArrayBlockingQueue<>(buffers.length);
+        private final BlockingQueue<HostBatch> ready = new ArrayBlockingQueue<>(capacity);
+        private final AtomicInteger claimed = new AtomicInteger();
+        private final CountDownLatch stopped = new CountDownLatch(threads);
+        private volatile boolean cancelled;
+        private volatile Throwable failure;
+        private int consumed;
+
+        private Epoch(NDManager manager, int[] order) {
+            this.manager = manager;
+            this.order = order;
+            this.batchSize = dataset.getBatchSize();
+            this.batches = (order.length + batchSize - 1) / batchSize;
+            for (HostBatch buffer : buffers) {
+                free.add(buffer);
+            }
+        }
+
+        private void start() {
+            for (int i = 0; i < threads; i++) {
+                producers.execute(this::produce);
+            }
+        }
+
+        private void produce() {
+            try {
+                while (!cancelled) {
+                    int n = claimed.getAndIncrement();
+                    if (n >= batches) {
+                        return;
+                    }
+                    HostBatch buffer = free.take();
+                    int from = n * batchSize;
+                    buffer.count = Math.min(batchSize, order.length - from);
+                    dataset.copyWindows(order, from, buffer.count, buffer.trajectories, buffer.conditions);
+                    ready.put(buffer);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException | Error e) {
+                failure = e;
+            } finally {
+                stopped.countDown();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return consumed < batches;
+        }
+
+        @Override
+        public Batch next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            HostBatch buffer;
+            try {
+                while ((buffer = ready.poll(POLL_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+                    if (failure != null) {
+                        throw new IllegalStateException("Batch prefetching failed", failure);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for a batch", e);
+            }
+            Batch batch = dataset.toBatch(manager, buffer.trajectories, buffer.conditions, buffer.count);
+            free.add(buffer);
+            consumed++;
+            return batch;
+        }
+
+        /**
+         * Stop the producers and wait until none of them touches a buffer any more.
+         */
+        private void cancel() {
+            cancelled = true;
+            // unblock producers waiting for a free buffer or a ready slot
+            free.clear();
+            ready.clear();
+            free.addAll(Arrays.asList(buffers));
+            try {
+                while (!stopped.await(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    ready.clear();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.warn("Interrupted while stopping batch prefetching");
+            }
+        }
+    }
+
+    private static final class HostBatch {
+        private final float[] trajectories;
+        private final float[] conditions;
+        private int count;
+
+        private HostBatch(int trajectorySize, int conditionSize) {
+            this.trajectories = new float[trajectorySize];
+            this.conditions = new float[conditionSize];
+        }
+    }
+}
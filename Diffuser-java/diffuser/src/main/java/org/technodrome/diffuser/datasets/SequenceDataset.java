@@ -0,0 +1,535 @@
+package org.technodrome.diffuser.datasets;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.training.dataset.Batch;
+import ai.djl.training.dataset.RandomAccessDataset;
+import ai.djl.training.dataset.Record;
+import ai.djl.translate.Batchifier;
+import ai.djl.util.Progress;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed-horizon windows over episodes stored in a flat, memory-mapped binary file.
+ * <p>
+ * File layout, little-endian: int magic, int version, int transitionDim, int episodeCount, episodeCount longs
+ * holding the episode lengths in transitions, then every transition as transitionDim float32 values laid out
+ * as [action, observation]. See {@link #write}.
+ * <p>
+ * The transitions are never copied onto the Java heap. Valid (episode, start) windows are indexed with primitive
+ * arrays, and {@link #getBatch} copies B windows straight from the mapping into one (B, H, transitionDim)
+ * tensor, together with the (B, observationDim) first observations used as the conditions at timestep 0.
+ * <p>
+ * With {@link Builder#optNormalization} set, windows are normalized by a {@link Normalizer} while they are
+ * copied, so batches and conditions come out in the model's normalized space.
+ */
+public class SequenceDataset extends RandomAccessDataset implements AutoCloseable {
+
+    public static final int MAGIC = 0x44494654; // "DIFT"
+    public static final int VERSION = 1;
+    private static final int HEADER_INTS = 4;
+
+    private final Path path;
+    private final int horizon;
+    private final int actionDim;
+    private final int batchSize;
+    private final boolean shuffle;
+    private final long seed;
+    private final AtomicInteger epochs = new AtomicInteger();
+    private final Normalizer.Mode normalization;
+    private final int prefetchThreads;
+    private final int prefetchCapacity;
+    private int transitionDim;
+    private int observationDim;
+    private long[] episodeOffsets;      // first global row of each episode
+    private int[] windowEpisodes;       // episode of each window
+    private int[] windowStarts;         // start row of each window within its episode
+    private FloatBuffer[] segments;
+    private int rowsPerSegment;
+    private ThreadLocal<Scratch> scratch;
+    private Normalizer normalizer;
+    private PrefetchingBatchLoader loader;
+    private boolean prepared;
+
+    protected SequenceDataset(Builder builder) {
+        super(builder);
+        this.path = builder.path;
+        this.horizon = builder.horizon;
+        this.actionDim = builder.actionDim;
+        this.batchSize = builder.batchSize;
+        this.shuffle = builder.shuffle;
+        this.seed = builder.seed;
+        this.normalization = builder.normalization;
+        this.prefetchThreads = builder.prefetchThreads;
+        this.prefetchCapacity = builder.prefetchCapacity;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public synchronized void prepare(Progress progress) throws IOException {
+        if (prepared) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_INTS * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a trajectory file: " + path);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported trajectory file version " + version + ": " + path);
+            }
+            this.transitionDim = header.getInt();
+            this.observationDim = transitionDim - actionDim;
+            int episodeCount = header.getInt();
+            if (observationDim <= 0) {
+                throw new IOException("transitionDim " + transitionDim + " leaves no room for observations with actionDim " + actionDim);
+            }
+
+            ByteBuffer lengths = ByteBuffer.allocate(episodeCount * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, lengths, HEADER_INTS * Integer.BYTES);
+            lengths.flip();
+            indexWindows(lengths, episodeCount);
+            if (progress != null) {
+                progress.reset("Indexing " + path.getFileName(), episodeCount);
+                progress.end();
+            }
+
+            long dataOffset = (long) HEADER_INTS * Integer.BYTES + (long) episodeCount * Long.BYTES;
+            long rows = episodeOffsets[episodeCount];
+            mapSegments(channel, dataOffset, rows);
+        }
+        if (normalization != null) {
+            this.normalizer = Normalizer.forDataset(this, normalization);
+        }
+        this.scratch = ThreadLocal.withInitial(Scratch::new);
+        this.prepared = true;
+    }
+
+    private void indexWindows(ByteBuffer lengths, int episodeCount) {
+        this.episodeOffsets = new long[episodeCount + 1];
+        long windows = 0;
+        for (int e = 0; e < episodeCount; e++) {
+            long length = lengths.getLong();
+            episodeOffsets[e + 1] = episodeOffsets[e] + length;
+            windows += Math.max(length - horizon + 1, 0);
+        }
+        if (windows > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Too many windows to index: " + windows);
+        }
+
+        this.windowEpisodes = new int[(int) windows];
+        this.windowStarts = new int[(int) windows];
+        int w = 0;
+        for (int e = 0; e < episodeCount; e++) {
+            long length = episodeOffsets[e + 1] - episodeOffsets[e];
+            for (int start = 0; start + horizon <= length; start++) {
+                windowEpisodes[w] = e;
+                windowStarts[w] = start;
+                w++;
+            }
+        }
+    }
+
+    /**
+     * Map the transitions in segments of whole rows, since one MappedByteBuffer cannot exceed 2GB.
+     */
+    private void mapSegments(FileChannel channel, long dataOffset, long rows) throws IOException {
+        long rowBytes = (long) transitionDim * Float.BYTES;
+        this.rowsPerSegment = (int) (Integer.MAX_VALUE / rowBytes);
+        int segmentCount = (int) ((rows + rowsPerSegment - 1) / rowsPerSegment);
+        this.segments = new FloatBuffer[segmentCount];
+        for (int s = 0; s < segmentCount; s++) {
+            long firstRow = (long) s * rowsPerSegment;
+            long segmentRows = Math.min(rowsPerSegment, rows - firstRow);
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY,
+                    dataOffset + firstRow * rowBytes, segmentRows * rowBytes);
+            segments[s] = mapped.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of trajectory file");
+            }
+        }
+    }
+
+    /**
+     * Copy a global row into dst at offset.
+     */
+    private void copyRow(long row, float[] dst, int offset) {
+        FloatBuffer segment = segments[(int) (row / rowsPerSegment)];
+        segment.get((int) (row % rowsPerSegment) * transitionDim, dst, offset, transitionDim);
+    }
+
+    /**
+     * Copy window w into trajectories at row offset b, and its first observation into conditions.
+     */
+    private void copyWindow(int w, int b, float[] trajectories, float[] conditions) {
+        long first = episodeOffsets[windowEpisodes[w]] + windowStarts[w];
+        int base = b * horizon * transitionDim;
+        for (int h = 0; h < horizon; h++) {
+            copyRow(first + h, trajectories, base + h * transitionDim);
+        }
+        if (normalizer != null) {
+            normalizer.normalize(trajectories, base, horizon);
+        }
+        System.arraycopy(trajectories, base + actionDim, conditions, b * observationDim, observationDim);
+    }
+
+    /**
+     * One window as a record of (x (H, transitionDim), cond (observationDim)), for DJL's generic iteration.
+     */
+    @Override
+    public Record get(NDManager manager, long index) {
+        try (Batch batch = getBatch(manager, new int[]{(int) index}, 1)) {
+            NDList record = new NDList(batch.getData().get(0).squeeze(0), batch.getData().get(1).squeeze(0));
+            record.attach(manager);
+            return new Record(record, new NDList());
+        }
+    }
+
+    /**
+     * Assemble the windows indices[0, count) into one batch with data (x (B, H, transitionDim), cond (B, observationDim)).
+     * <p>
+     * Windows are copied into per-thread scratch arrays that are reused across calls, so the only allocations
+     * are the two output tensors. They live on a sub-manager of manager that closes with the batch. Safe to call
+     * from several threads.
+     */
+    public Batch getBatch(NDManager manager, int[] indices, int count) {
+        Scratch s = scratch.get();
+        float[] trajectories = s.trajectories(count * horizon * transitionDim);
+        float[] conditions = s.conditions(count * observationDim);
+        copyWindows(indices, 0, count, trajectories, conditions);
+        return toBatch(manager, trajectories, conditions, count);
+    }
+
+    /**
+     * Copy count assembled windows from host buffers into a batch on a new sub-manager of manager.
+     */
+    Batch toBatch(NDManager manager, float[] trajectories, float[] conditions, int count) {
+        // Batch.close() closes its manager, so each batch gets its own, as in DJL's DataIterable
+        NDManager batchManager = manager.newSubManager();
+        NDArray x = batchManager.create(FloatBuffer.wrap(trajectories, 0, count * horizon * transitionDim),
+                new Shape(count, horizon, transitionDim));
+        NDArray cond = batchManager.create(FloatBuffer.wrap(conditions, 0, count * observationDim),
+                new Shape(count, observationDim));
+        return new Batch(batchManager, new NDList(x, cond), new NDList(), count,
+                Batchifier.STACK, Batchifier.STACK, 0, 0);
+    }
+
+    /**
+     * Copy the windows indices[from, from + count) into caller-owned row-major buffers, without touching the engine.
+     *
+     * @param trajectories receives (count, H, transitionDim)
+     * @param conditions   receives (count, observationDim)
+     */
+    public void copyWindows(int[] indices, int from, int count, float[] trajectories, float[] conditions) {
+        for (int b = 0; b < count; b++) {
+            copyWindow(indices[from + b], b, trajectories, conditions);
+        }
+    }
+
+    /**
+     * Iterate the windows in batches of batchSize, in a fresh permutation every epoch when shuffling.
+     * <p>
+     * Replaces DJL's per-record sampling and batchifying with {@link #getBatch}.
+     */
+    @Override
+    public Iterable<Batch> getData(NDManager manager) throws IOException {
+        prepare(null);
+        if (prefetchThreads > 0) {
+            PrefetchingBatchLoader prefetching;
+            synchronized (this) {
+                if (loader == null) {
+                    loader = new PrefetchingBatchLoader(this, prefetchThreads, prefetchCapacity);
+                }
+                prefetching = loader;
+            }
+            return () -> prefetching.epoch(manager);
+        }
+        return () -> new BatchIterator(manager, epochOrder());
+    }
+
+    /**
+     * {@link #getData(NDManager)}, the overload EasyTrain's trainer calls. The executor is not used: batches are
+     * assembled by the prefetching loader's own threads, or on the consuming thread without prefetching.
+     */
+    @Override
+    public Iterable<Batch> getData(NDManager manager, ExecutorService executorService) throws IOException {
+        return getData(manager);
+    }
+
+    /**
+     * The window order of the next epoch. Epoch e is shuffled with seed + e, so runs with the same seed see the
+     * same sequence of epochs.
+     */
+    public int[] epochOrder() {
+        int[] order = new int[windowEpisodes.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        if (shuffle) {
+            Random random = new Random(seed + epochs.getAndIncrement());
+            for (int i = order.length - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int tmp = order[i];
+                order[i] = order[j];
+                order[j] = tmp;
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Stop the prefetching loader, if {@link #getData} started one, and release its buffers.
+     */
+    @Override
+    public synchronized void close() {
+        if (loader != null) {
+            loader.close();
+            loader = null;
+        }
+    }
+
+    @Override
+    protected long availableSize() {
+        return windowEpisodes == null ? 0 : windowEpisodes.length;
+    }
+
+    public int getHorizon() {
+        return horizon;
+    }
+
+    public int getTransitionDim() {
+        return transitionDim;
+    }
+
+    public int getActionDim() {
+        return actionDim;
+    }
+
+    public int getObservationDim() {
+        return observationDim;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * The normalizer applied to every window, or null if batches are not normalized.
+     */
+    public Normalizer getNormalizer() {
+        return normalizer;
+    }
+
+    /**
+     * The number of transitions in the file.
+     */
+    public long getTransitionCount() {
+        return episodeOffsets[episodeOffsets.length - 1];
+    }
+
+    /**
+     * Copy transition row (in file order) into dst at offset, without normalization.
+     */
+    public void getTransition(long row, float[] dst, int offset) {
+        copyRow(row, dst, offset);
+    }
+
+    /**
+     * Write episodes in the layout read by this dataset.
+     *
+     * @param path          the file to write
+     * @param transitionDim actionDim + observationDim
+     * @param episodes      every episode as row-major (length, transitionDim) transitions
+     */
+    public static void write(Path path, int transitionDim, float[][] episodes) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(path))) {
+            ByteBuffer buffer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            writeInt(out, buffer, MAGIC);
+            writeInt(out, buffer, VERSION);
+            writeInt(out, buffer, transitionDim);
+            writeInt(out, buffer, episodes.length);
+            for (float[] episode : episodes) {
+                if (episode.length % transitionDim != 0) {
+                    throw new IllegalArgumentException("Episode size " + episode.length + " is not a multiple of " + transitionDim);
+                }
+                buffer.clear();
+                out.write(buffer.putLong(episode.length / transitionDim).array(), 0, Long.BYTES);
+            }
+            for (float[] episode : episodes) {
+                ByteBuffer rows = ByteBuffer.allocate(episode.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                rows.asFloatBuffer().put(episode);
+                out.write(rows.array());
+            }
+        }
+    }
+
+    private static void writeInt(DataOutputStream out, ByteBuffer buffer, int value) throws IOException {
+        buffer.clear();
+        out.write(buffer.putInt(value).array(), 0, Integer.BYTES);
+    }
+
+    private final class BatchIterator implements Iterator<Batch> {
+        private final NDManager manager;
+        private final int[] order;
+        private int position;
+
+        private BatchIterator(NDManager manager, int[] order) {
+            this.manager = manager;
+            this.order = order;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return position < order.length;
+        }
+
+        @Override
+        public Batch next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int count = Math.min(batchSize, order.length - position);
+            int[] indices = scratch.get().indices(count);
+            System.arraycopy(order, position, indices, 0, count);
+            position += count;
+            return getBatch(manager, indices, count);
+        }
+    }
+
+    private static final class Scratch {
+        private float[] trajectories = new float[0];
+        private float[] conditions = new float[0];
+        private int[] indices = new int[0];
+
+        private float[] trajectories(int size) {
+            if (trajectories.length < size) {
+                trajectories = new float[size];
+            }
+            return trajectories;
+        }
+
+        private float[] conditions(int size) {
+            if (conditions.length < size) {
+                conditions = new float[size];
+            }
+            return conditions;
+        }
+
+        private int[] indices(int size) {
+            if (indices.length < size) {
+                indices = new int[size];
+            }
+            return indices;
+        }
+    }
+
+    public static final class Builder extends BaseBuilder<Builder> {
+        private Path path;
+        private int horizon = 64;
+        private int actionDim;
+        private int batchSize = 32;
+        private boolean shuffle = true;
+        private long seed = 0L;
+        private Normalizer.Mode normalization;
+        private int prefetchThreads;
+        private int prefetchCapacity;
+
+        @Override
+        protected Builder self() {
+            return this;
+        }
+
+        public Builder setPath(Path path) {
+            this.path = path;
+            return this;
+        }
+
+        public Builder setHorizon(int horizon) {
+            this.horizon = horizon;
+            return this;
+        }
+
+        public Builder setActionDim(int actionDim) {
+            this.actionDim = actionDim;
+            return this;
+        }
+
+        @Override
+        public Builder setSampling(int batchSize, boolean random) {
+            this.batchSize = batchSize;
+            this.shuffle = random;
+            return super.setSampling(batchSize, random);
+        }
+
+        public Builder optSeed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * Normalize windows with statistics computed on first use and cached next to the file.
+         */
+        public Builder optNormalization(Normalizer.Mode normalization) {
+            this.normalization = normalization;
+            return this;
+        }
+
+        /**
+         * Assemble batches on background threads while the trainer consumes them, see {@link PrefetchingBatchLoader}.
+         *
+         * @param threads  the number of producer threads
+         * @param capacity the number of ready batches kept ahead of the trainer
+         */
+        public Builder optPrefetch(int threads, int capacity) {
+            if (threads < 1 || capacity < 1) {
+                throw new IllegalArgumentException("threads and capacity must be positive, got " + threads + " and " + capacity);
+            }
+            this.prefetchThreads = threads;
+            this.prefetchCapacity = capacity;
+            return this;
+        }
+
+        public SequenceDataset build() {
+            if (path == null) {
+                throw new IllegalArgumentException("path is required");
+            }
+            if (horizon < 1) {
+                throw new IllegalArgumentException("horizon must be positive, got " + horizon);
+            }
+            return new SequenceDataset(this);
+        }
+    }
+}
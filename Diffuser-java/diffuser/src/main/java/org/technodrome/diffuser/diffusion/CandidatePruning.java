@@ -0,0 +1,68 @@
+package org.technodrome.diffuser.diffusion;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Settings of best-of-N sampling with early pruning, see {@link GaussianDiffusion#prunedSample}.
+ *
+ * @param valueFunction the value model that scores the predicted clean trajectories
+ * @param checkpoints   the timesteps at which candidates are pruned, in any order
+ * @param dropFraction  the fraction of the remaining candidates dropped at each checkpoint, in [0, 1)
+ * @param minSurvivors  pruning never leaves fewer candidates than this
+ */
+public record CandidatePruning(ValueDiffusion valueFunction,
+                               int[] checkpoints,
+                               double dropFraction,
+                               int minSurvivors) {
+
+    public CandidatePruning {
+        if (dropFraction < 0 || dropFraction >= 1) {
+            throw new IllegalArgumentException("dropFraction must be in [0, 1), got " + dropFraction);
+        }
+        if (minSurvivors < 1) {
+            throw new IllegalArgumentException("minSurvivors must be positive, got " + minSurvivors);
+        }
+        checkpoints = checkpoints.clone();
+        Arrays.sort(checkpoints);
+    }
+
+    /**
+     * @return a copy of the checkpoints, in ascending order
+     */
+    @Override
+    public int[] checkpoints() {
+        return checkpoints.clone();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof CandidatePruning other
+                && Objects.equals(valueFunction, other.valueFunction)
+                && Arrays.equals(checkpoints, other.checkpoints)
+                && Double.compare(dropFraction, other.dropFraction) == 0
+                && minSurvivors == other.minSurvivors;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(valueFunction, Arrays.hashCode(checkpoints), dropFraction, minSurvivors);
+    }
+
+    @Override
+    public String toString() {
+        return "CandidatePruning[valueFunction=" + valueFunction + ", checkpoints=" + Arrays.toString(checkpoints)
+                + ", dropFraction=" + dropFraction + ", minSurvivors=" + minSurvivors + "]";
+    }
+
+    /**
+     * @return the checkpoints, highest timestep first
+     */
+    int[] descendingCheckpoints() {
+        int[] descending = new int[checkpoints.length];
+        for (int k = 0; k < checkpoints.length; k++) {
+            descending[k] = checkpoints[checkpoints.length - 1 - k];
+        }
+        return descending;
+    }
+}
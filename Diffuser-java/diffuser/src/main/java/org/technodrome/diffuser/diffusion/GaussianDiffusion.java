@@ -1,23 +1,42 @@
 package org.technodrome.diffuser.diffusion;
 
 import ai.djl.Device;
+import ai.djl.engine.Engine;
 import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
 import ai.djl.ndarray.NDManager;
 import ai.djl.ndarray.index.NDIndex;
+import ai.djl.ndarray.types.DataType;
 import ai.djl.ndarray.types.Shape;
+import ai.djl.training.GradientCollector;
 import org.jetbrains.annotations.Nullable;
 import org.technodrome.diffuser.Denoiser;
-import org.technodrome.diffuser.diffusion.helpers.NDUtils;
+import org.technodrome.diffuser.diffusion.helpers.ConditioningPlan;
+import org.technodrome.diffuser.diffusion.helpers.NoiseSchedule;
+import org.technodrome.diffuser.diffusion.helpers.NoiseScheduleRegistry;
+import org.technodrome.diffuser.diffusion.helpers.TrackingManager;
+import org.technodrome.diffuser.diffusion.helpers.loss.WeightedLoss;
 
-import java.util.List;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
 
-import static org.technodrome.diffuser.diffusion.helpers.NDUtils.applyConditioning;
-import static org.technodrome.diffuser.diffusion.helpers.NDUtils.extract;
+import static org.technodrome.diffuser.diffusion.helpers.NDUtils.extractAll;
 
-public class GaussianDiffusion {
+/**
+ * A diffusion model over trajectories of (action, observation) transitions.
+ * <p>
+ * Every instance owns a base manager on its own device, which holds the loss weights and parents the
+ * request-scoped managers of the sampling loops. Sampled arrays are attached to the manager of the
+ * conditioning arrays (or of the trajectory passed in), so callers scope results per request or per thread
+ * by choosing where they create their conditions; the model's own manager is only used when there are none.
+ * Instances can sample concurrently from several threads.
+ */
+public class GaussianDiffusion implements AutoCloseable {
 
-    private static NDManager manager = NDManager.newBaseManager(Device.gpu());
+    private static final int STEP_COEFFICIENTS = 5;
+
+    private final NDManager manager;
     private final Denoiser denoiserModel;
     private int horizon;
     private int observationDimension;
@@ -31,14 +50,18 @@ public class GaussianDiffusion {
     private double lossDiscount;
     private double[] lossWeightsByDimension;
     private NDArray lossWeights;
-    private NDArray inverseSqrtAlphasCumprod;
-    private NDArray inverseSqrtOneMinusAlphasCumprod;
-    private NDArray posteriorMeanCoefficient1;
-    private NDArray posteriorMeanCoefficient2;
-    private NDArray posteriorVariance;
-    private NDArray posteriorLogVarianceClipped;
-    private NDArray sqrtAlphasCumProd;
-    private NDArray sqrtOneMinusAlphasCumProd;
+    private WeightedLoss lossFunction;
+    // (timesteps, NoiseSchedule.COEFFICIENTS), shared with every instance on the same schedule and device
+    private NDArray coefficients;
+    // host copy of the schedule, used by the sampling loop where every batch entry shares one timestep
+    private NoiseSchedule noiseSchedule;
+    // null unless sampling is instrumented; read once per loop so the disabled path is a null check per step
+    private volatile SamplingInstrumentation instrumentation;
+    // native byte budget of each sampling request, 0 to run requests without accounting
+    private volatile long memoryBudget;
+    // null to draw training timesteps uniformly
+    private volatile TimestepSampler timestepSampler;
+    private NoiseScheduleRegistry.DeviceSchedule deviceSchedule;
 
     public GaussianDiffusion(Denoiser denoiserModel,
                              int horizon,
@@ -51,6 +74,26 @@ public class GaussianDiffusion {
                              double actionWeight,
                              double lossDiscount,
                              double[] lossWeightsByDimension) {
+        this(denoiserModel, horizon, observationDimension, actionDimension, timesteps, lossType, clipDenoised,
+                predictEpsilon, actionWeight, lossDiscount, lossWeightsByDimension, Engine.getInstance().defaultDevice());
+    }
+
+    /**
+     * @param device the device the model's buffers and samples live on
+     */
+    public GaussianDiffusion(Denoiser denoiserModel,
+                             int horizon,
+                             int observationDimension,
+                             int actionDimension,
+                             int timesteps,
+                             String lossType,
+                             boolean clipDenoised,
+                             boolean predictEpsilon,
+                             double actionWeight,
+                             double lossDiscount,
+                             double[] lossWeightsByDimension,
+                             Device device) {
+        this.manager = NDManager.newBaseManager(device);
         this.denoiserModel = denoiserModel;
         this.horizon = horizon;
         this.observationDimension = observationDimension;
@@ -68,191 +111,971 @@ public class GaussianDiffusion {
     }
 
     private void initializeBuffers() {
-        NDArray betas = NDUtils.cosineBetaSchedule(this.timesteps);
-        NDArray alphas = null;
-        betas.copyTo(alphas);
-        alphas = alphas.mul(-1.0).add(1.0);
-        NDArray alphasCumProd = alphas.cumProd(0);
-
-        NDIndex prevIndex = new NDIndex(":-1");
-        NDArray alphasCumProdShift = alphasCumProd.get(prevIndex);
-        NDArray alphasCumProdPrev = manager.ones(new Shape(List.of(1L)));
-        alphasCumProdPrev.concat(alphasCumProdShift, 0);
-
-        this.sqrtAlphasCumProd = alphasCumProd.sqrt();
-        NDArray oneMinusAlphasCumProd = alphasCumProd.mul(-1).add(1.0);
-        NDArray oneMinusAlphasCumProdPrev = alphasCumProdPrev.mul(-1).add(1.0);
-        this.sqrtOneMinusAlphasCumProd = oneMinusAlphasCumProd.sqrt();
-        NDArray logOneMinusAlphasCumProd = oneMinusAlphasCumProd.log();
-        this.inverseSqrtAlphasCumprod = sqrtAlphasCumProd.inverse();
-        this.inverseSqrtOneMinusAlphasCumprod = alphasCumProd.sub(1.0).inverse().sqrt();
-        this.posteriorVariance = betas.mul(oneMinusAlphasCumProdPrev).div(oneMinusAlphasCumProd);
-        this.posteriorLogVarianceClipped = posteriorVariance.log().clip(1e-20, Double.MAX_VALUE);
-        this.posteriorMeanCoefficient1 = betas.mul(alphasCumProdPrev.sqrt()).div(oneMinusAlphasCumProd);
-        this.posteriorMeanCoefficient2 = oneMinusAlphasCumProdPrev.mul(alphas).div(oneMinusAlphasCumProd);
+        NoiseScheduleRegistry registry = NoiseScheduleRegistry.shared();
+        this.deviceSchedule = registry.acquire(NoiseSchedule.Type.COSINE, this.timesteps, manager.getDevice());
+        this.noiseSchedule = this.deviceSchedule.host();
+
+        this.coefficients = this.deviceSchedule.coefficients();
         this.lossWeights = getLossWeights(this.actionWeight, this.lossDiscount, this.lossWeightsByDimension);
+        this.lossFunction = WeightedLoss.forType(this.lossType, this.lossWeights, this.actionDimension);
+    }
+
+    /**
+     * Release the shared schedule buffers and close the model's manager.
+     */
+    @Override
+    public void close() {
+        if (this.deviceSchedule != null) {
+            NoiseScheduleRegistry.shared().release(this.deviceSchedule);
+            this.deviceSchedule = null;
+        }
+        this.lossWeights = null;
+        if (this.lossFunction != null) {
+            this.lossFunction.close();
+            this.lossFunction = null;
+        }
+        this.manager.close();
+    }
+
+    public Device getDevice() {
+        return this.manager.getDevice();
+    }
+
+    public int getHorizon() {
+        return this.horizon;
+    }
+
+    public int getActionDimension() {
+        return this.actionDimension;
+    }
+
+    public int getObservationDimension() {
+        return this.observationDimension;
+    }
+
+    public int getTransitionDimension() {
+        return this.transitionDimension;
+    }
+
+    public int getTimesteps() {
+        return this.timesteps;
+    }
+
+    public boolean isPredictEpsilon() {
+        return this.predictEpsilon;
+    }
+
+    /**
+     * The host copy of the model's noise schedule.
+     */
+    public NoiseSchedule getNoiseSchedule() {
+        return this.noiseSchedule;
+    }
+
+    /**
+     * A model with the same settings and device around another denoiser, e.g. a distilled one. The new
+     * model shares the schedule buffers and must be closed separately.
+     */
+    public GaussianDiffusion withDenoiser(Denoiser denoiser) {
+        return new GaussianDiffusion(denoiser, this.horizon, this.observationDimension, this.actionDimension,
+                this.timesteps, this.lossType, this.clipDenoised, this.predictEpsilon, this.actionWeight,
+                this.lossDiscount, this.lossWeightsByDimension, getDevice());
+    }
+
+    /**
+     * Record per-timestep latencies and memory of every sampling loop into instrumentation, or stop recording
+     * with null.
+     */
+    public void setInstrumentation(@Nullable SamplingInstrumentation instrumentation) {
+        if (instrumentation != null && instrumentation.getTimesteps() != this.timesteps) {
+            throw new IllegalArgumentException("Instrumentation covers " + instrumentation.getTimesteps()
+                    + " timesteps, model has " + this.timesteps);
+        }
+        this.instrumentation = instrumentation;
+    }
+
+    @Nullable
+    public SamplingInstrumentation getInstrumentation() {
+        return this.instrumentation;
+    }
+
+    /**
+     * Run the stepwise sampling loops (DDPM, DDIM, guided and warm-started) and {@link #picardSampleLoop} in a
+     * {@link TrackingManager} that fails them once they hold more than budgetBytes after a step or iteration,
+     * and reports the arrays they leave on the model's manager; 0 turns the accounting off. Pruned sampling is
+     * not accounted.
+     */
+    public void setMemoryBudget(long budgetBytes) {
+        if (budgetBytes < 0) {
+            throw new IllegalArgumentException("budgetBytes must not be negative, got " + budgetBytes);
+        }
+        this.memoryBudget = budgetBytes;
+    }
+
+    public long getMemoryBudget() {
+        return this.memoryBudget;
+    }
+
+    /**
+     * Open an accounted request on the model's manager, e.g. around a training step whose batch is created on
+     * its manager.
+     *
+     * @param budgetBytes the most native bytes the request may hold at a {@link TrackingManager#check()}
+     */
+    public TrackingManager openRequest(String name, long budgetBytes) {
+        return TrackingManager.open(name, this.manager, this.manager.getDevice(), budgetBytes);
+    }
+
+    /**
+     * Draw the timesteps of {@link #loss} with sampler, weighting each trajectory's loss by its importance
+     * weight, or uniformly with null.
+     */
+    public void setTimestepSampler(@Nullable TimestepSampler sampler) {
+        if (sampler != null && sampler.getTimesteps() != this.timesteps) {
+            throw new IllegalArgumentException("Sampler draws from " + sampler.getTimesteps() + " timesteps, model has "
+                    + this.timesteps);
+        }
+        this.timestepSampler = sampler;
+    }
+
+    @Nullable
+    public TimestepSampler getTimestepSampler() {
+        return this.timestepSampler;
+    }
+
+    /**
+     * The weighted trajectory loss, over the model's loss weights.
+     */
+    public WeightedLoss getLossFunction() {
+        return this.lossFunction;
     }
 
     private NDArray getLossWeights(double actionWeight,
                                    double lossDiscount,
                                    double[] lossWeightsByDimension) {
         this.actionWeight = actionWeight;
-        NDArray dimensionWeights = manager.ones(new Shape(List.of((long) this.transitionDimension)));
+        double[] dimensionWeights = new double[this.transitionDimension];
+        Arrays.fill(dimensionWeights, 1.0);
         if (lossWeightsByDimension == null)
             lossWeightsByDimension = new double[]{};
 
+        // lossWeightsByDimension is indexed by observation dimension
         for (int index = 0; index < lossWeightsByDimension.length; index++) {
-            dimensionWeights.get(this.actionDimension + index).mul(lossWeightsByDimension[index]);
+            dimensionWeights[this.actionDimension + index] *= lossWeightsByDimension[index];
+        }
+
+        double[] discounts = new double[this.horizon];
+        double discountsSum = 0.0;
+        for (int h = 0; h < this.horizon; h++) {
+            discounts[h] = Math.pow(lossDiscount, h);
+            discountsSum += discounts[h];
         }
+        double discountsMean = discountsSum / this.horizon;
 
-        NDArray discounts = manager.arange((float) this.horizon).mul(Math.log(lossDiscount)).exp();
-        double discountsMean = discounts.mean().getDouble(0L);
-        discounts = discounts.div(discountsMean);
-        NDArray discounts2d = discounts.reshape(discounts.getShape().get(0), 1);
-        NDArray dimWeights2d = manager.create(lossWeightsByDimension).reshape(1, lossWeightsByDimension.length);
+        // Outer product of discounts and dimensionWeights, with the first action set to actionWeight
+        float[] lossWeights = new float[this.horizon * this.transitionDimension];
+        for (int h = 0; h < this.horizon; h++) {
+            for (int d = 0; d < this.transitionDimension; d++) {
+                lossWeights[h * this.transitionDimension + d] = (float) (discounts[h] / discountsMean * dimensionWeights[d]);
+            }
+        }
+        for (int d = 0; d < this.actionDimension; d++) {
+            lossWeights[d] = (float) actionWeight;
+        }
+        return manager.create(lossWeights, new Shape(this.horizon, this.transitionDimension));
+    }
 
-        // Create the outer product of discounts and lossWeightsByDimension
-        NDArray lossWeights = discounts2d.mul(dimWeights2d);
-        // Set the first row equal to actionWeight
-        lossWeights.set(new NDIndex("0, :{}", this.actionDimension), actionWeight);
-        return lossWeights;
+    /**
+     * The schedule coefficients at the times in t, each shaped (B, 1, 1) to broadcast against x.
+     */
+    private NDList coefficientsAt(NDArray t, Shape xShape) {
+        return extractAll(this.coefficients, t, xShape);
     }
 
-    private NDArray predictStartFromNoise(NDArray xT, NDArray t, NDArray noise) {
-        if (this.predictEpsilon) {
-            return extract(this.inverseSqrtAlphasCumprod, t, xT.getShape()).mul(xT).sub(
-                    extract(this.inverseSqrtOneMinusAlphasCumprod, t, xT.getShape()).mul(noise));
+    /**
+     * Run the full reverse diffusion from pure noise.
+     * <p>
+     * The trajectory and timestep buffers are allocated once and updated in place at every timestep. The
+     * temporaries of each step live on a sub-manager that is closed before the next step.
+     *
+     * @param shape       (B, H, transitionDim)
+     * @param cond        map timestep -> observation (B, observationDim)
+     * @param returnChain whether to also return every intermediate trajectory as (B, timesteps + 1, H, transitionDim)
+     * @return the sampled trajectories
+     */
+    public Sample pSampleLoop(Shape shape, Map<Integer, NDArray> cond, boolean returnChain) {
+        NDArray x = newTrajectory(shape, outputManager(cond));
+        try (ConditioningPlan plan = ConditioningPlan.fromConditions(manager, cond, shape, this.actionDimension)) {
+            return sampleLoop(x, plan, timestepSequence(this.timesteps - 1, this.timesteps), this::pSample, returnChain);
+        }
+    }
+
+    /**
+     * {@link #pSampleLoop(Shape, Map, boolean)} with precompiled conditioning, e.g. an inpainting mask.
+     */
+    public Sample pSampleLoop(Shape shape, ConditioningPlan plan, boolean returnChain) {
+        NDArray x = newTrajectory(shape, outputManager(plan));
+        return sampleLoop(x, plan, timestepSequence(this.timesteps - 1, this.timesteps), this::pSample, returnChain);
+    }
+
+    /**
+     * Run a DDIM reverse diffusion from pure noise over samplingSteps evenly spaced timesteps.
+     * <p>
+     * Uses the same alphasCumProd as the full schedule, so any model trained for {@link #pSampleLoop} can be
+     * sampled this way. eta = 0 gives the deterministic sampler, eta = 1 approximately recovers DDPM noise.
+     *
+     * @param shape         (B, H, transitionDim)
+     * @param cond          map timestep -> observation (B, observationDim)
+     * @param samplingSteps the number of denoiser calls, at most timesteps
+     * @param eta           the scale of the noise injected at each step
+     * @param returnChain   whether to also return every intermediate trajectory as (B, samplingSteps + 1, H, transitionDim)
+     * @return the sampled trajectories
+     */
+    public Sample ddimSampleLoop(Shape shape, Map<Integer, NDArray> cond, int samplingSteps, double eta, boolean returnChain) {
+        int[] sequence = ddimSequence(samplingSteps);
+        NDArray x = newTrajectory(shape, outputManager(cond));
+        try (ConditioningPlan plan = ConditioningPlan.fromConditions(manager, cond, shape, this.actionDimension)) {
+            return sampleLoop(x, plan, sequence, (y, c, t, i, prev, step) -> ddimSample(y, c, i, prev, eta, t, step),
+                    returnChain);
+        }
+    }
+
+    /**
+     * {@link #ddimSampleLoop(Shape, Map, int, double, boolean)} with precompiled conditioning, e.g. an
+     * inpainting mask.
+     */
+    public Sample ddimSampleLoop(Shape shape, ConditioningPlan plan, int samplingSteps, double eta, boolean returnChain) {
+        int[] sequence = ddimSequence(samplingSteps);
+        NDArray x = newTrajectory(shape, outputManager(plan));
+        return sampleLoop(x, plan, sequence, (y, c, t, i, prev, step) -> ddimSample(y, c, i, prev, eta, t, step),
+                returnChain);
+    }
+
+    /**
+     * Run the full reverse diffusion from pure noise, moving x up the gradient of a value function before
+     * every step, as Diffuser's n_step_guided_p_sample does.
+     * <p>
+     * A guide step is one value forward and backward over the whole batch, recorded by a gradient collector
+     * open for that step alone, on a detached copy of x; the denoiser runs outside it. Timesteps below the
+     * guide's stopGradTimestep skip guidance altogether instead of computing a gradient and zeroing it. The
+     * guide steps leave gradients on the value model's parameters, so this must not overlap a training step
+     * of the value model.
+     *
+     * @param shape       (B, H, transitionDim)
+     * @param cond        map timestep -> observation (B, observationDim)
+     * @param guide       the value function and guidance settings
+     * @param returnChain whether to also return every intermediate trajectory as (B, timesteps + 1, H, transitionDim)
+     * @return the sampled trajectories, with their values at t = 0
+     */
+    public Sample guidedSampleLoop(Shape shape, Map<Integer, NDArray> cond, ValueGuide guide, boolean returnChain) {
+        NDArray x = newTrajectory(shape, outputManager(cond));
+        Sample sample;
+        try (ConditioningPlan plan = ConditioningPlan.fromConditions(manager, cond, shape, this.actionDimension)) {
+            sample = sampleLoop(x, plan, timestepSequence(this.timesteps - 1, this.timesteps),
+                    (y, c, t, i, prev, step) -> {
+                        guide(y, t, i, plan, guide);
+                        posteriorStep(y, denoise(y, c, t, i).stopGradient(), i, step);
+                    }, returnChain);
+        }
+        sample.values().close();
+        NDArray values = guide.valueFunction().values(sample.trajectories(), cond);
+        return new Sample(sample.trajectories(), values, sample.chains());
+    }
+
+    /**
+     * guideSteps gradient steps on x in place, each followed by the conditioning. x and t must be attached to
+     * the step's manager.
+     */
+    private void guide(NDArray x, NDArray t, int i, ConditioningPlan plan, ValueGuide guide) {
+        if (i < guide.stopGradTimestep()) {
+            return;
+        }
+        double scale = guide.scale();
+        if (guide.scaleGradByStd()) {
+            scale *= Math.exp(this.noiseSchedule.posteriorLogVarianceClipped(i));
+        }
+        for (int g = 0; g < guide.guideSteps(); g++) {
+            // a detached leaf copy, since x itself is updated in place
+            NDArray leaf = x.duplicate().stopGradient();
+            leaf.setRequiresGradient(true);
+            try (GradientCollector collector = x.getManager().getEngine().newGradientCollector()) {
+                NDArray y = guide.valueFunction().forward(leaf, plan.getConditions(), t);
+                collector.backward(y.sum());
+            }
+            x.addi(leaf.getGradient().muli(scale));
+            plan.apply(x);
+        }
+    }
+
+    /**
+     * {@link #ddimSampleLoop(Shape, Map, int, double, boolean)} over an explicit timestep sequence, e.g.
+     * {@link #strideSequence} for distilled models.
+     *
+     * @param sequence strictly descending timesteps in [0, timesteps), the last step going to the clean trajectory
+     */
+    public Sample ddimSampleLoop(Shape shape, Map<Integer, NDArray> cond, int[] sequence, double eta, boolean returnChain) {
+        for (int k = 0; k < sequence.length; k++) {
+            if (sequence[k] < 0 || sequence[k] >= this.timesteps || (k > 0 && sequence[k] >= sequence[k - 1])) {
+                throw new IllegalArgumentException("sequence must descend strictly within [0, " + this.timesteps + ")");
+            }
+        }
+        NDArray x = newTrajectory(shape, outputManager(cond));
+        try (ConditioningPlan plan = ConditioningPlan.fromConditions(manager, cond, shape, this.actionDimension)) {
+            return sampleLoop(x, plan, sequence, (y, c, t, i, prev, step) -> ddimSample(y, c, i, prev, eta, t, step),
+                    returnChain);
         }
+    }
 
-        return noise;
+    /**
+     * steps timesteps at a constant stride of timesteps / steps, ending one stride above the clean trajectory.
+     * Halving steps keeps every other timestep, so the sequences of successive distillation rounds nest.
+     *
+     * @param steps a divisor of timesteps
+     */
+    public static int[] strideSequence(int timesteps, int steps) {
+        if (steps < 1 || timesteps % steps != 0) {
+            throw new IllegalArgumentException("steps must divide timesteps " + timesteps + ", got " + steps);
+        }
+        int stride = timesteps / steps;
+        int[] sequence = new int[steps];
+        for (int k = 0; k < steps; k++) {
+            sequence[k] = (steps - k) * stride - 1;
+        }
+        return sequence;
     }
 
-    private NDArray[] qPosterior(NDArray xStart, NDArray xT, NDArray t) {
-        NDArray posteriorMean = extract(this.posteriorMeanCoefficient1, t, xT.getShape()).mul(xStart).add(
-                extract(this.posteriorMeanCoefficient2, t, xT.getShape()).mul(xT));
-        NDArray selectedPosteriorVariance = extract(this.posteriorVariance, t, xT.getShape());
-        NDArray selectedLogPosteriorVarianceClipped = extract(this.posteriorLogVarianceClipped, t, xT.getShape());
-        return new NDArray[]{posteriorMean, selectedPosteriorVariance, selectedLogPosteriorVarianceClipped};
+    private int[] ddimSequence(int samplingSteps) {
+        if (samplingSteps < 1 || samplingSteps > this.timesteps) {
+            throw new IllegalArgumentException("samplingSteps must be in [1, " + this.timesteps + "], got " + samplingSteps);
+        }
+        return timestepSequence(this.timesteps - 1, samplingSteps);
+    }
 
+    /**
+     * Re-noise an existing trajectory to startTimestep with the forward process, then denoise it from there.
+     * <p>
+     * This is the warm start of receding-horizon planning: a good guess of the plan only needs the tail of
+     * the reverse process. x is noised and denoised in place and returned as the sample's trajectories.
+     *
+     * @param x             (B, H, transitionDim), a clean trajectory
+     * @param cond          map timestep -> observation (B, observationDim)
+     * @param startTimestep the timestep to re-noise to, in [0, timesteps)
+     * @param samplingSteps the number of denoiser calls; the DDPM posterior is used when this covers every
+     *                      timestep up to startTimestep, and DDIM with the given eta otherwise
+     * @param eta           the DDIM noise scale
+     */
+    public Sample warmStartSample(NDArray x, Map<Integer, NDArray> cond, int startTimestep, int samplingSteps, double eta) {
+        try (ConditioningPlan plan = ConditioningPlan.fromConditions(manager, cond, x.getShape(), this.actionDimension)) {
+            return warmStartSample(x, plan, startTimestep, samplingSteps, eta);
+        }
     }
 
-    private NDArray[] pMeanVariance(NDArray x, NDArray cond, NDArray t) {
-        NDArray xRecon = predictStartFromNoise(x, t, this.denoiserModel.forward(x, cond, t, true));
+    /**
+     * {@link #warmStartSample(NDArray, Map, int, int, double)} with precompiled conditioning, e.g. an
+     * inpainting mask.
+     */
+    public Sample warmStartSample(NDArray x, ConditioningPlan plan, int startTimestep, int samplingSteps, double eta) {
+        if (startTimestep < 0 || startTimestep >= this.timesteps) {
+            throw new IllegalArgumentException("startTimestep must be in [0, " + this.timesteps + "), got " + startTimestep);
+        }
+        int steps = Math.max(1, Math.min(samplingSteps, startTimestep + 1));
+
+        // q(x_t | x_0) with every batch entry at startTimestep, so the coefficients are scalars
+        try (NDManager step = manager.newSubManager(x.getDevice())) {
+            x.tempAttach(step);
+            x.muli(this.noiseSchedule.sqrtAlphasCumProd(startTimestep)).addi(
+                    step.randomNormal(x.getShape()).muli(this.noiseSchedule.sqrtOneMinusAlphasCumProd(startTimestep)));
+        }
+
+        int[] sequence = timestepSequence(startTimestep, steps);
+        if (steps == startTimestep + 1) {
+            return sampleLoop(x, plan, sequence, this::pSample, false);
+        }
+        return sampleLoop(x, plan, sequence, (y, c, t, i, prev, step) -> ddimSample(y, c, i, prev, eta, t, step), false);
+    }
+
+    /**
+     * Sample with Picard iteration over a sliding window of timesteps instead of one step after the other.
+     * <p>
+     * With the noise of every step drawn up front, the reverse process is a fixed recurrence x_{k+1} = x_k +
+     * drift_k(x_k). Each iteration evaluates the drifts of all window states in one denoiser call over
+     * (window * B) rows, then rebuilds the window from its first state with a cumulative sum of the drifts.
+     * A state is final once the states before it changed by less than tolerance (RMS), and the window slides
+     * past the final states; the first
+     * state of a window is always exact, so the loop needs at most as many iterations as there are steps,
+     * and far fewer when the denoiser is smooth. The result matches the sequential sampler with the same
+     * noise up to tolerance. This spends spare cores on wider denoiser batches to cut the latency of a
+     * single plan.
+     *
+     * @param shape         (B, H, transitionDim)
+     * @param cond          map timestep -> observation (B, observationDim)
+     * @param samplingSteps the number of steps; DDIM with eta when less than timesteps, DDPM otherwise
+     * @param eta           the DDIM noise scale
+     * @param window        the number of steps evaluated together
+     * @param tolerance     the RMS change below which a state is converged
+     * @return the sampled trajectories
+     */
+    public Sample picardSampleLoop(Shape shape, Map<Integer, NDArray> cond, int samplingSteps, double eta,
+                                   int window, double tolerance) {
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be positive, got " + window);
+        }
+        boolean ddpm = samplingSteps >= this.timesteps;
+        int[] sequence = ddpm ? timestepSequence(this.timesteps - 1, this.timesteps) : ddimSequence(samplingSteps);
+        int steps = sequence.length;
+        long batchSize = shape.get(0);
+        NDManager output = outputManager(cond);
+        long budget = this.memoryBudget;
+
+        try (TrackingManager tracking = budget > 0
+                ? TrackingManager.open("picard", manager, output.getDevice(), budget) : null;
+             NDManager request = tracking != null ? tracking.getManager() : manager.newSubManager(output.getDevice());
+             ConditioningPlan plan = ConditioningPlan.fromConditions(request, cond, shape, this.actionDimension)) {
+            // states[k] is x after k steps; noise[k] is the noise of step k
+            NDArray states = request.zeros(new Shape(steps + 1).addAll(shape));
+            NDArray start = plan.apply(request.randomNormal(shape));
+            states.set(new NDIndex("0"), start);
+            NDArray noise = request.randomNormal(new Shape(steps).addAll(shape));
+            NDArray coefficients = request.create(stepCoefficients(sequence, ddpm, eta), new Shape(steps, STEP_COEFFICIENTS));
+            long[] timestepValues = new long[steps];
+            for (int k = 0; k < steps; k++) {
+                timestepValues[k] = sequence[k];
+            }
+            NDArray timestepArray = request.create(timestepValues);
+            double threshold = tolerance * tolerance;
+
+            int begin = 0;
+            int initialized = 0;    // states (0, initialized] hold a guess
+            while (begin < steps) {
+                int end = Math.min(begin + window, steps);
+                try (NDManager iteration = request.newSubManager()) {
+                    // guess the states the window has newly reached with the latest one
+                    if (initialized < end) {
+                        NDArray latest = states.get(new NDIndex("{}", initialized));
+                        latest.attach(iteration);
+                        for (int k = initialized + 1; k <= end; k++) {
+                            states.set(new NDIndex("{}", k), latest);
+                        }
+                        initialized = end;
+                    }
+                    begin += picardIteration(states, noise, coefficients, timestepArray, cond, plan, begin, end,
+                            batchSize, threshold, iteration);
+                    if (tracking != null) {
+                        tracking.check();
+                    }
+                }
+            }
+
+            NDArray x = states.get(new NDIndex("{}", steps));
+            NDArray values = request.zeros(new Shape(batchSize));
+            NDList result = new NDList(x, values);
+            result.attach(output);
+            if (tracking != null) {
+                tracking.returning(x, values);
+            }
+            return new Sample(x, values, null);
+        }
+    }
+
+    /**
+     * One Picard update of the states (begin, end].
+     *
+     * @return the number of leading states of the window that converged, at least 1
+     */
+    private int picardIteration(NDArray states, NDArray noise, NDArray coefficients, NDArray timestepArray,
+                                @Nullable Map<Integer, NDArray> cond, ConditioningPlan plan,
+                                int begin, int end, long batchSize, double threshold, NDManager iteration) {
+        int p = end - begin;
+        NDIndex window = new NDIndex("{}:{}", begin, end);
+        NDIndex next = new NDIndex("{}:{}", begin + 1, end + 1);
+        Shape stateShape = states.getShape().slice(1);
+        Shape rowShape = new Shape(p * batchSize).addAll(stateShape.slice(1));
+        Shape broadcast = new Shape(p, 1, 1, 1);
+
+        NDArray xs = states.get(window);
+        xs.attach(iteration);
+        NDArray c = coefficients.get(window);
+        c.attach(iteration);
+        NDArray z = noise.get(window);
+        z.attach(iteration);
+        NDArray t = timestepArray.get(window).repeat(0, batchSize);
+        t.attach(iteration);
+        Map<Integer, NDArray> rowCond = null;
+        if (cond != null) {
+            rowCond = new HashMap<>();
+            for (Map.Entry<Integer, NDArray> e : cond.entrySet()) {
+                NDArray tiled = e.getValue().tile(0, p);
+                tiled.attach(iteration);
+                rowCond.put(e.getKey(), tiled);
+            }
+        }
+
+        // one denoiser call for every state of the window
+        NDArray out = this.denoiserModel.forward(xs.reshape(rowShape), rowCond, t, false).reshape(xs.getShape());
+        out.attach(iteration);
+        NDArray xRecon = out.muli(c.get(":, 1").reshape(broadcast)).addi(xs.mul(c.get(":, 0").reshape(broadcast)));
         if (this.clipDenoised) {
-            xRecon.clip(-1., -1.);
-        }
-        return this.qPosterior(xRecon, x, t);
-    }
-
-//
-//    @torch.no_grad()
-//    def p_sample_loop(self, shape, cond, verbose=True, return_chain=False, sample_fn=default_sample_fn, **sample_kwargs):
-//    device = self.betas.device
-//
-//            batch_size = shape[0]
-//    x = torch.randn(shape, device=device)
-//    x = apply_conditioning(x, cond, self.action_dim)
-//
-//    chain = [x] if return_chain else None
-//
-//            progress = utils.Progress(self.n_timesteps) if verbose else utils.Silent()
-//            for i in reversed(range(0, self.n_timesteps)):
-//    t = make_timesteps(batch_size, i, device)
-//    x, values = sample_fn(self, x, cond, t, **sample_kwargs)
-//    x = apply_conditioning(x, cond, self.action_dim)
-//
-//            progress.update({'t': i, 'vmin': values.min().item(), 'vmax': values.max().item()})
-//            if return_chain: chain.append(x)
-//
-//            progress.stamp()
-//
-//    x, values = sort_by_values(x, values)
-//        if return_chain: chain = torch.stack(chain, dim=1)
-//            return Sample(x, values, chain)
-//
-//    @torch.no_grad()
-//    def conditional_sample(self, cond, horizon=None, **sample_kwargs):
-//            '''
-//    conditions : [ (time, state), ... ]
-//            '''
-//    device = self.betas.device
-//            batch_size = len(cond[0])
-//    horizon = horizon or self.horizon
-//    shape = (batch_size, horizon, self.transition_dim)
-//
-//            return self.p_sample_loop(shape, cond, **sample_kwargs)
-//
-//            #------------------------------------------ training ------------------------------------------#
+            xRecon = xRecon.clip(-1., 1.);
+        }
+        NDArray stepped = xs.mul(c.get(":, 2").reshape(broadcast))
+                .addi(xRecon.muli(c.get(":, 3").reshape(broadcast)))
+                .addi(z.mul(c.get(":, 4").reshape(broadcast)));
+        stepped.attach(iteration);
+        plan.apply(stepped);
 
-    private NDArray qSample(NDArray xStart, Map<Integer, NDArray> t, @Nullable NDArray noise) {
-        if (noise == null) {
-            noise = manager.randomNormal(xStart.getShape());
+        // x_{begin + j + 1} = x_begin + sum_{m <= j} drift_{begin + m}
+        NDArray updated = stepped.subi(xs).cumSum(0).addi(xs.get("0"));
+        NDArray previous = states.get(next);
+        previous.attach(iteration);
+        float[] errors = updated.sub(previous).square().mean(new int[]{1, 2, 3}).toFloatArray();
+        states.set(next, updated);
+
+        // a state is final once every state before it in the window stopped changing
+        int converged = 1;
+        while (converged < p && errors[converged - 1] <= threshold) {
+            converged++;
+        }
+        return converged;
+    }
+
+    /**
+     * Sample N candidates and keep the best, dropping the lowest-valued ones at checkpoints along the way.
+     * <p>
+     * At the first step at or below each checkpoint timestep, the step's predicted clean trajectories
+     * (conditioned like x) are scored by the value function in one batched pass. Only the top
+     * (1 - dropFraction) of the candidates, and at least minSurvivors, are carried on: x, its prediction and
+     * the conditions are gathered down to the survivors before the step's update, so the update and every
+     * later step run on the smaller batch. Dropping half the candidates once halfway through the schedule
+     * costs about 3/4 of the unpruned denoiser work, and earlier or repeated checkpoints cost less.
+     *
+     * @param cond          map timestep -> observation (N, observationDim), one row per candidate
+     * @param horizon       the planning horizon, or null to use the model's horizon
+     * @param samplingSteps the number of denoising steps; DDIM with eta when less than timesteps, DDPM otherwise
+     * @param eta           the DDIM noise scale
+     * @param pruning       the value function and checkpoints
+     * @return the survivors, best first, with their values at t = 0 and their rows among the N candidates,
+     * attached to the manager of the conditions
+     */
+    public ValueDiffusion.Ranking prunedSample(Map<Integer, NDArray> cond, @Nullable Integer horizon, int samplingSteps,
+                                               double eta, CandidatePruning pruning) {
+        long count = cond.values().iterator().next().getShape().get(0);
+        int h = horizon == null ? this.horizon : horizon;
+        boolean ddpm = samplingSteps >= this.timesteps;
+        int[] sequence = ddpm ? timestepSequence(this.timesteps - 1, this.timesteps) : ddimSequence(samplingSteps);
+        int[] checkpoints = pruning.descendingCheckpoints();
+        NDManager output = outputManager(cond);
+
+        try (NDManager request = manager.newSubManager(output.getDevice())) {
+            NDArray x = request.randomNormal(new Shape(count, h, this.transitionDimension));
+            NDArray rows = request.arange(0, (int) count, 1, DataType.INT64);
+            Map<Integer, NDArray> survivors = cond;
+            ConditioningPlan plan = ConditioningPlan.fromConditions(request, survivors, x.getShape(), this.actionDimension);
+            plan.apply(x);
+
+            int nextCheckpoint = 0;
+            for (int k = 0; k < sequence.length; k++) {
+                int i = sequence[k];
+                int prev = k + 1 < sequence.length ? sequence[k + 1] : -1;
+                NDArray pruned = null;
+                try (NDManager step = request.newSubManager()) {
+                    x.tempAttach(step);
+                    NDArray t = step.full(new Shape(count), i, DataType.INT64);
+                    NDArray xRecon = predictStart(x, survivors, t, i);
+
+                    long kept = count;
+                    if (nextCheckpoint < checkpoints.length && i <= checkpoints[nextCheckpoint]) {
+                        while (nextCheckpoint < checkpoints.length && i <= checkpoints[nextCheckpoint]) {
+                            nextCheckpoint++;
+                        }
+                        kept = Math.min(count, Math.max(pruning.minSurvivors(), (long) Math.ceil(count * (1 - pruning.dropFraction()))));
+                    }
+                    if (kept < count) {
+                        NDArray values = pruning.valueFunction().values(plan.blend(xRecon), survivors);
+                        NDArray keep = values.topK((int) kept, 0, true, false).get(1);
+                        keep.attach(request);
+
+                        pruned = x;
+                        x = x.get(new NDIndex("{}", keep));
+                        x.attach(request);
+                        x.tempAttach(step);
+                        xRecon = xRecon.get(new NDIndex("{}", keep));
+                        rows = rows.get(new NDIndex("{}", keep));
+                        survivors = gatherConditions(survivors, keep, request);
+                        plan.close();
+                        plan = ConditioningPlan.fromConditions(request, survivors, x.getShape(), this.actionDimension);
+                        count = kept;
+                    }
+
+                    if (ddpm) {
+                        posteriorStep(x, xRecon, i, step);
+                    } else {
+                        ddimStep(x, xRecon, i, prev, eta, step);
+                    }
+                }
+                if (pruned != null) {
+                    pruned.close();
+                }
+                plan.apply(x);
+            }
+            plan.close();
+
+            // final ranking of the survivors, best first
+            NDArray values = pruning.valueFunction().values(x, survivors);
+            NDArray order = values.topK((int) count, 0, true, true).get(1);
+            NDList ranked = new NDList(x.get(new NDIndex("{}", order)), values.get(new NDIndex("{}", order)),
+                    rows.get(new NDIndex("{}", order)));
+            ranked.attach(output);
+            return new ValueDiffusion.Ranking(ranked.get(0), ranked.get(1), ranked.get(2));
+        }
+    }
+
+    /**
+     * The rows keep of every condition, attached to scope.
+     */
+    private static Map<Integer, NDArray> gatherConditions(Map<Integer, NDArray> cond, NDArray keep, NDManager scope) {
+        Map<Integer, NDArray> gathered = new HashMap<>();
+        for (Map.Entry<Integer, NDArray> e : cond.entrySet()) {
+            NDArray rows = e.getValue().get(new NDIndex("{}", keep));
+            rows.attach(scope);
+            gathered.put(e.getKey(), rows);
+        }
+        return gathered;
+    }
+
+    /**
+     * Pure noise on the model's device, attached to output.
+     */
+    private NDArray newTrajectory(Shape shape, NDManager output) {
+        NDArray x = manager.randomNormal(shape);
+        x.attach(output);
+        return x;
+    }
+
+    private NDManager outputManager(@Nullable Map<Integer, NDArray> cond) {
+        if (cond == null || cond.isEmpty()) {
+            return manager;
         }
+        return cond.values().iterator().next().getManager();
+    }
 
-        return extract(this.sqrtAlphasCumProd, t, xStart.getShape()).mul(xStart).add(
-                extract(this.sqrtOneMinusAlphasCumProd, t, xStart.getShape()).mul(noise));
+    private NDManager outputManager(ConditioningPlan plan) {
+        NDManager output = plan.getManager();
+        return output == null ? manager : output;
+    }
+
+    /**
+     * steps timesteps evenly spaced from start down to 0, both included.
+     */
+    private static int[] timestepSequence(int start, int steps) {
+        int[] sequence = new int[steps];
+        double stride = steps > 1 ? (double) start / (steps - 1) : 0.0;
+        for (int k = 0; k < steps; k++) {
+            sequence[k] = steps > 1 ? (int) Math.round((steps - 1 - k) * stride) : start;
+        }
+        return sequence;
     }
 
+    /**
+     * Denoise x in place over the given descending timesteps, re-applying the conditioning after each step.
+     * <p>
+     * Everything but the returned arrays lives on a manager scoped to this call; the returned arrays are
+     * attached to the manager of x.
+     */
+    private Sample sampleLoop(NDArray x, ConditioningPlan plan, int[] sequence, StepFunction stepFunction,
+                              boolean returnChain) {
+        Shape shape = x.getShape();
+        long batchSize = shape.get(0);
+        Map<Integer, NDArray> cond = plan.getConditions();
+        NDManager output = x.getManager();
+        SamplingInstrumentation instrumentation = this.instrumentation;
+        long budget = this.memoryBudget;
+        plan.apply(x);
 
-    private NDArray pLosses(NDArray xStart, Map<Integer, NDArray> cond, NDArray t) {
+        try (TrackingManager tracking = budget > 0
+                ? TrackingManager.open("sampling", manager, x.getDevice(), budget) : null;
+             NDManager request = tracking != null ? tracking.getManager() : manager.newSubManager(x.getDevice())) {
+            NDArray chain = null;
+            if (returnChain) {
+                chain = request.zeros(new Shape(batchSize, sequence.length + 1, shape.get(1), shape.get(2)));
+                chain.set(new NDIndex(":, 0"), x);
+            }
 
-        NDArray noise = manager.randomNormal(xStart.getShape());
-        NDArray xNoisy = this.qSample(xStart, cond, t);
-        xNoisy = applyConditioning(xNoisy, cond, this.actionDimension);
+            // decremented in place rather than re-created every step
+            NDArray t = request.full(new Shape(batchSize), sequence[0], DataType.INT64);
+            for (int k = 0; k < sequence.length; k++) {
+                int i = sequence[k];
+                int prev = k + 1 < sequence.length ? sequence[k + 1] : -1;
+                long start = instrumentation != null ? System.nanoTime() : 0L;
+                try (NDManager step = request.newSubManager()) {
+                    x.tempAttach(step);
+                    t.tempAttach(step);
+                    stepFunction.step(x, cond, t, i, prev, step);
+                    if (tracking != null) {
+                        tracking.check();
+                    }
+                }
+                plan.apply(x);
+                if (instrumentation != null) {
+                    instrumentation.recordStep(i, x, request, start);
+                }
+                if (chain != null) {
+                    chain.set(new NDIndex(":, {}", k + 1), x);
+                }
+                if (prev >= 0) {
+                    t.subi(i - prev);
+                }
+            }
+
+            NDArray values = request.zeros(new Shape(batchSize));
+            values.attach(output);
+            if (chain != null) {
+                chain.attach(output);
+            }
+            if (instrumentation != null) {
+                instrumentation.recordOutput(output);
+            }
+            if (tracking != null) {
+                tracking.returning(x, values, chain);
+            }
+            return new Sample(x, values, chain);
+        }
+    }
+
+    /**
+     * One reverse diffusion step x_t -> x_{t-1}, written into x.
+     * <p>
+     * All batch entries share timestep i here, so the posterior coefficients are host scalars rather than
+     * gathered tensors. x and t must be attached to step for the duration of the call.
+     */
+    private void pSample(NDArray x, Object cond, NDArray t, int i, int prev, NDManager step) {
+        posteriorStep(x, denoise(x, cond, t, i), i, step);
+    }
 
-        NDArray xRecon = this.denoiserModel.forward(xStart, t, noise, true);
-        xRecon = applyConditioning(xRecon, cond, this.actionDimension);
+    /**
+     * {@link #predictStart}, timed into the instrumentation if there is one.
+     */
+    private NDArray denoise(NDArray x, Object cond, NDArray t, int i) {
+        SamplingInstrumentation instrumentation = this.instrumentation;
+        if (instrumentation == null) {
+            return predictStart(x, cond, t, i);
+        }
+        long start = System.nanoTime();
+        NDArray xRecon = predictStart(x, cond, t, i);
+        instrumentation.recordDenoiser(i, xRecon, start);
+        return xRecon;
+    }
 
+    /**
+     * The (optionally clipped) prediction of the clean trajectory from x, with every batch entry at timestep i.
+     * Lives on the manager x is attached to.
+     *
+     * @param t (B,) int64, every entry i
+     */
+    public NDArray predictStart(NDArray x, Object cond, NDArray t, int i) {
+        NDArray output = this.denoiserModel.forward(x, cond, t, false);
+        NDArray xRecon;
         if (this.predictEpsilon) {
-            return null;
+            xRecon = output.muli(-this.noiseSchedule.inverseSqrtOneMinusAlphasCumprod(i))
+                    .addi(x.mul(this.noiseSchedule.inverseSqrtAlphasCumprod(i)));
         } else {
-            return null;
-        }
-    }
-//
-//    def p_losses(self, x_start, cond, t):
-//    noise = torch.randn_like(x_start)
-//
-//    x_noisy = self.q_sample(x_start=x_start, t=t, noise=noise)
-//    x_noisy = apply_conditioning(x_noisy, cond, self.action_dim)
-//
-//    x_recon = self.model(x_noisy, cond, t)
-//    x_recon = apply_conditioning(x_recon, cond, self.action_dim)
-//
-//        assert noise.shape == x_recon.shape
-//
-//        if self.predict_epsilon:
-//    loss, info = self.loss_fn(x_recon, noise)
-//            else:
-//    loss, info = self.loss_fn(x_recon, x_start)
-//
-//            return loss, info
-//
-//    def loss(self, x, *args):
-//    batch_size = len(x)
-//    t = torch.randint(0, self.n_timesteps, (batch_size,), device=x.device).long()
-//        return self.p_losses(x, *args, t)
-//
-//    def forward(self, cond, *args, **kwargs):
-//            return self.conditional_sample(cond, *args, **kwargs)
-//
-//
-//    class ValueDiffusion(GaussianDiffusion):
-//
-//    def p_losses(self, x_start, cond, target, t):
-//    noise = torch.randn_like(x_start)
-//
-//    x_noisy = self.q_sample(x_start=x_start, t=t, noise=noise)
-//    x_noisy = apply_conditioning(x_noisy, cond, self.action_dim)
-//
-//    pred = self.model(x_noisy, cond, t)
-//
-//    loss, info = self.loss_fn(pred, target)
-//            return loss, info
-//
-//    def forward(self, x, cond, t):
-//            return self.model(x, cond, t)
+            xRecon = output;
+        }
+        if (this.clipDenoised) {
+            xRecon = xRecon.clip(-1., 1.);
+        }
+        return xRecon;
+    }
+
+    /**
+     * The DDPM posterior step from timestep i given the predicted start, written into x. Overwrites xRecon.
+     */
+    private void posteriorStep(NDArray x, NDArray xRecon, int i, NDManager step) {
+        // x_{t-1} = c1 * xRecon + c2 * x_t + sigma_t * z, with no noise on the final step
+        x.muli(this.noiseSchedule.posteriorMeanCoefficient2(i)).addi(xRecon.muli(this.noiseSchedule.posteriorMeanCoefficient1(i)));
+        if (i > 0) {
+            double std = Math.exp(0.5 * this.noiseSchedule.posteriorLogVarianceClipped(i));
+            x.addi(step.randomNormal(x.getShape()).muli(std));
+        }
+    }
+
+    /**
+     * One DDIM step x_t -> x_prev, written into x. prev = -1 denotes the clean trajectory.
+     * <p>
+     * With x0 the (optionally clipped) predicted start and eps the noise implied by it, x_prev is
+     * sqrt(acpPrev) * x0 + dir * eps + sigma * z, which expands to a blend of x and x0 alone.
+     */
+    private void ddimSample(NDArray x, Object cond, int i, int prev, double eta, NDArray t, NDManager step) {
+        ddimStep(x, denoise(x, cond, t, i), i, prev, eta, step);
+    }
+
+    /**
+     * The DDIM step from timestep i to prev given the predicted start, written into x. Overwrites xRecon.
+     */
+    private void ddimStep(NDArray x, NDArray xRecon, int i, int prev, double eta, NDManager step) {
+        double[] c = ddimCoefficients(i, prev, eta);
+        x.muli(c[0]).addi(xRecon.muli(c[1]));
+        if (c[2] > 0) {
+            x.addi(step.randomNormal(x.getShape()).muli(c[2]));
+        }
+    }
+
+    /**
+     * The DDIM step from i to prev as x_prev = c[0] * x + c[1] * x0 + c[2] * z.
+     */
+    private double[] ddimCoefficients(int i, int prev, double eta) {
+        double alphaCumProd = this.noiseSchedule.alphasCumProd(i);
+        double alphaCumProdPrev = prev >= 0 ? this.noiseSchedule.alphasCumProd(prev) : 1.0;
+        double sigma = eta * Math.sqrt((1.0 - alphaCumProdPrev) / (1.0 - alphaCumProd))
+                * Math.sqrt(1.0 - alphaCumProd / alphaCumProdPrev);
+        double direction = Math.sqrt(Math.max(1.0 - alphaCumProdPrev - sigma * sigma, 0.0));
+
+        double sqrtOneMinusAlphaCumProd = Math.sqrt(1.0 - alphaCumProd);
+        double xCoefficient = direction / sqrtOneMinusAlphaCumProd;
+        double xReconCoefficient = Math.sqrt(alphaCumProdPrev) - direction * Math.sqrt(alphaCumProd) / sqrtOneMinusAlphaCumProd;
+        return new double[]{xCoefficient, xReconCoefficient, sigma};
+    }
+
+    /**
+     * Every step of a sequence as one row of (xRecon from x, xRecon from the model output, x, x0, noise)
+     * coefficients: x0 = clip(a * x + b * output) and x_prev = c * x + d * x0 + e * z.
+     */
+    private float[] stepCoefficients(int[] sequence, boolean ddpm, double eta) {
+        float[] table = new float[sequence.length * STEP_COEFFICIENTS];
+        for (int k = 0; k < sequence.length; k++) {
+            int i = sequence[k];
+            int prev = k + 1 < sequence.length ? sequence[k + 1] : -1;
+            int row = k * STEP_COEFFICIENTS;
+            table[row] = this.predictEpsilon ? (float) this.noiseSchedule.inverseSqrtAlphasCumprod(i) : 0f;
+            table[row + 1] = this.predictEpsilon ? (float) -this.noiseSchedule.inverseSqrtOneMinusAlphasCumprod(i) : 1f;
+            if (ddpm) {
+                table[row + 2] = (float) this.noiseSchedule.posteriorMeanCoefficient2(i);
+                table[row + 3] = (float) this.noiseSchedule.posteriorMeanCoefficient1(i);
+                table[row + 4] = i > 0 ? (float) Math.exp(0.5 * this.noiseSchedule.posteriorLogVarianceClipped(i)) : 0f;
+            } else {
+                double[] c = ddimCoefficients(i, prev, eta);
+                table[row + 2] = (float) c[0];
+                table[row + 3] = (float) c[1];
+                table[row + 4] = (float) c[2];
+            }
+        }
+        return table;
+    }
+
+    /**
+     * conditions : map timestep -> observation (B, observationDim)
+     *
+     * @param horizon the planning horizon, or null to use the model's horizon
+     */
+    public Sample conditionalSample(Map<Integer, NDArray> cond, @Nullable Integer horizon) {
+        long batchSize = cond.values().iterator().next().getShape().get(0);
+        int h = horizon == null ? this.horizon : horizon;
+        Shape shape = new Shape(batchSize, h, this.transitionDimension);
+        return this.pSampleLoop(shape, cond, false);
+    }
 
+    /**
+     * conditions : map timestep -> observation (B, observationDim)
+     * <p>
+     * Samples with the strided DDIM sampler when samplingSteps is less than timesteps, and with the full
+     * DDPM loop otherwise.
+     *
+     * @param horizon       the planning horizon, or null to use the model's horizon
+     * @param samplingSteps the number of denoiser calls
+     * @param eta           the DDIM noise scale, 0 for deterministic sampling
+     */
+    public Sample conditionalSample(Map<Integer, NDArray> cond, @Nullable Integer horizon, int samplingSteps, double eta) {
+        if (samplingSteps >= this.timesteps) {
+            return this.conditionalSample(cond, horizon);
+        }
+        long batchSize = cond.values().iterator().next().getShape().get(0);
+        int h = horizon == null ? this.horizon : horizon;
+        Shape shape = new Shape(batchSize, h, this.transitionDimension);
+        return this.ddimSampleLoop(shape, cond, samplingSteps, eta, false);
+    }
+
+    /**
+     * conditions : map timestep -> observation (B, observationDim), sampled with value guidance
+     *
+     * @param horizon the planning horizon, or null to use the model's horizon
+     */
+    public Sample conditionalSample(Map<Integer, NDArray> cond, @Nullable Integer horizon, ValueGuide guide) {
+        long batchSize = cond.values().iterator().next().getShape().get(0);
+        int h = horizon == null ? this.horizon : horizon;
+        Shape shape = new Shape(batchSize, h, this.transitionDimension);
+        return this.guidedSampleLoop(shape, cond, guide, false);
+    }
+
+    public Sample forward(Map<Integer, NDArray> cond) {
+        return this.conditionalSample(cond, null);
+    }
+
+//            #------------------------------------------ training ------------------------------------------#
+
+    /**
+     * q(x_t | x_0): xStart noised to the timesteps t. Also the forward process of {@link ValueDiffusion}.
+     *
+     * @param noise the noise to add, or null to draw it on the manager of xStart
+     */
+    NDArray qSample(NDArray xStart, NDArray t, @Nullable NDArray noise) {
+        if (noise == null) {
+            noise = xStart.getManager().randomNormal(xStart.getShape());
+        }
+
+        NDList coefficients = coefficientsAt(t, xStart.getShape());
+        return coefficients.get(NoiseSchedule.SQRT_ALPHAS_CUM_PROD).mul(xStart).add(
+                coefficients.get(NoiseSchedule.SQRT_ONE_MINUS_ALPHAS_CUM_PROD).mul(noise));
+    }
+
+
+    /**
+     * The denoising loss at the given timesteps.
+     *
+     * @param xStart     (B, H, transitionDim) clean trajectories
+     * @param cond       map timestep -> observation (B, observationDim)
+     * @param t          (B,) int64 timesteps
+     * @param importance (B,) per-trajectory loss weights, or null
+     */
+    private WeightedLoss.Result pLosses(NDArray xStart, Map<Integer, NDArray> cond, NDArray t,
+                                        @Nullable NDArray importance) {
+        NDManager batchManager = xStart.getManager();
+        NDArray noise = batchManager.randomNormal(xStart.getShape());
+        NDArray xNoisy = this.qSample(xStart, t, noise);
+        try (ConditioningPlan plan = ConditioningPlan.fromConditions(batchManager, cond, xStart.getShape(), this.actionDimension)) {
+            plan.apply(xNoisy);
+            // out of place, since xRecon is recorded for the backward pass
+            NDArray xRecon = plan.blend(this.denoiserModel.forward(xNoisy, cond, t, true));
+            return this.lossFunction.evaluateWithInfo(xRecon, this.predictEpsilon ? noise : xStart, importance);
+        }
+    }
+
+    /**
+     * The training loss of a batch, at a timestep per trajectory drawn by the {@link TimestepSampler}, or
+     * uniformly without one. The sampler is updated with the batch's per-trajectory losses.
+     *
+     * @param x    (B, H, transitionDim) clean trajectories
+     * @param cond map timestep -> observation (B, observationDim)
+     * @return the weighted loss and a0Loss, attached to the manager of x
+     */
+    public WeightedLoss.Result loss(NDArray x, Map<Integer, NDArray> cond) {
+        TimestepSampler sampler = this.timestepSampler;
+        int batchSize = Math.toIntExact(x.getShape().get(0));
+        if (sampler == null) {
+            NDArray t = x.getManager().randomInteger(0, this.timesteps, new Shape(batchSize), DataType.INT64);
+            return pLosses(x, cond, t, null);
+        }
+        TimestepSampler.Draw draw = sampler.sample(x.getManager(), batchSize);
+        WeightedLoss.Result result = pLosses(x, cond, draw.t(), draw.weights());
+        sampler.update(draw.timesteps(), result.trajectories());
+        return result;
+    }
+
+    @FunctionalInterface
+    private interface StepFunction {
+        /**
+         * Move x from timestep i to timestep prev in place. x and t are attached to step for the call.
+         */
+        void step(NDArray x, Object cond, NDArray t, int i, int prev, NDManager step);
+    }
 
     public record Sample(NDArray trajectories, NDArray values, NDArray chains) {
 
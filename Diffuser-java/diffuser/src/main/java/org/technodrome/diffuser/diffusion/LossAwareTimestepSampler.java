@@ -0,0 +1,138 @@
+package org.technodrome.diffuser.diffusion;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Importance sampling of training timesteps by their recent loss (Nichol and Dhariwal, 2021): p(t) is
+ * proportional to sqrt(E[loss_t^2]) over the last historySize losses seen at t, mixed with a uniform
+ * fraction so no timestep starves. Timesteps are drawn uniformly until every one has a full history.
+ * <p>
+ * The history is a primitive ring of squared losses per timestep. Updates claim ring slots with atomic
+ * increments and store the squared loss with a plain atomic set, so data-parallel workers update one sampler
+ * without locks. A draw sums the rings afresh, O(timesteps * historySize + B log timesteps): a running sum
+ * updated by deltas would drift with rounding error over a long run, and the rings are small.
+ * <p>
+ * {@link #update} copies the batch's (B,) losses to the host, one small transfer per batch.
+ */
+public final class LossAwareTimestepSampler implements TimestepSampler {
+
+    private final int timesteps;
+    private final int historySize;
+    private final double uniformFraction;
+    private final AtomicLongArray history;      // (timesteps, historySize) squared losses, as double bits
+    private final AtomicLongArray counts;       // per timestep, losses seen
+    private final AtomicInteger warm = new AtomicInteger();     // timesteps with a full ring
+
+    /**
+     * @param timesteps       the model's timesteps
+     * @param historySize     the losses remembered per timestep, 10 in the paper
+     * @param uniformFraction the probability mass spread uniformly, 0.001 in the paper
+     */
+    public LossAwareTimestepSampler(int timesteps, int historySize, double uniformFraction) {
+        if (timesteps < 1 || historySize < 1) {
+            throw new IllegalArgumentException("timesteps and historySize must be positive, got " + timesteps
+                    + " and " + historySize);
+        }
+        if (uniformFraction < 0 || uniformFraction > 1) {
+            throw new IllegalArgumentException("uniformFraction must be in [0, 1], got " + uniformFraction);
+        }
+        this.timesteps = timesteps;
+        this.historySize = historySize;
+        this.uniformFraction = uniformFraction;
+        this.history = new AtomicLongArray(timesteps * historySize);
+        this.counts = new AtomicLongArray(timesteps);
+    }
+
+    public LossAwareTimestepSampler(int timesteps) {
+        this(timesteps, 10, 0.001);
+    }
+
+    @Override
+    public int getTimesteps() {
+        return timesteps;
+    }
+
+    /**
+     * Whether every timestep has a full history, so draws are importance sampled.
+     */
+    public boolean isWarm() {
+        return warm.get() == timesteps;
+    }
+
+    /**
+     * @return the current sampling probability of every timestep
+     */
+    public double[] probabilities() {
+        double[] p = new double[timesteps];
+        if (!isWarm()) {
+            Arrays.fill(p, 1.0 / timesteps);
+            return p;
+        }
+        double total = 0.0;
+        for (int t = 0; t < timesteps; t++) {
+            double sum = 0.0;
+            for (int slot = t * historySize; slot < (t + 1) * historySize; slot++) {
+                sum += Double.longBitsToDouble(history.get(slot));
+            }
+            p[t] = Math.sqrt(sum / historySize);
+            total += p[t];
+        }
+        for (int t = 0; t < timesteps; t++) {
+            double weighted = total > 0 ? p[t] / total : 1.0 / timesteps;
+            p[t] = (1.0 - uniformFraction) * weighted + uniformFraction / timesteps;
+        }
+        return p;
+    }
+
+    @Override
+    public Draw sample(NDManager manager, int batchSize) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int[] drawn = new int[batchSize];
+        long[] t = new long[batchSize];
+        if (!isWarm()) {
+            for (int b = 0; b < batchSize; b++) {
+                drawn[b] = random.nextInt(timesteps);
+                t[b] = drawn[b];
+            }
+            return new Draw(drawn, manager.create(t), null);
+        }
+
+        double[] p = probabilities();
+        double[] cumulative = new double[timesteps];
+        double running = 0.0;
+        for (int i = 0; i < timesteps; i++) {
+            running += p[i];
+            cumulative[i] = running;
+        }
+        float[] weights = new float[batchSize];
+        for (int b = 0; b < batchSize; b++) {
+            int i = Arrays.binarySearch(cumulative, random.nextDouble() * running);
+            i = Math.min(i < 0 ? -i - 1 : i, timesteps - 1);
+            drawn[b] = i;
+            t[b] = i;
+            weights[b] = (float) (1.0 / (timesteps * p[i]));
+        }
+        return new Draw(drawn, manager.create(t), manager.create(weights, new Shape(batchSize)));
+    }
+
+    @Override
+    public void update(int[] timesteps, NDArray losses) {
+        float[] values = losses.toFloatArray();
+        for (int b = 0; b < timesteps.length; b++) {
+            int t = timesteps[b];
+            double squared = (double) values[b] * values[b];
+            long seen = counts.getAndIncrement(t);
+            if (seen == historySize - 1) {
+                warm.incrementAndGet();
+            }
+            history.set(t * historySize + (int) (seen % historySize), Double.doubleToRawLongBits(squared));
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package org.technodrome.diffuser.diffusion;
+
+import ai.djl.metric.Dimension;
+import ai.djl.metric.Metrics;
+import ai.djl.metric.Unit;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-timestep timing and memory statistics of the {@link GaussianDiffusion} sampling loops, enabled with
+ * {@link GaussianDiffusion#setInstrumentation}.
+ * <p>
+ * Each step's wall time goes into a log2-bucketed latency histogram of its timestep, and the part spent in the
+ * denoiser into a per-timestep sum; the rest of the step (posterior update, guidance, conditioning) is the
+ * difference. After every step the live arrays and native bytes of the loop's request manager are sampled,
+ * and at the end of each loop those of the output manager. Everything is kept in primitive lock-free
+ * counters, so several threads may sample through one instance, and {@link #publish} turns the totals since
+ * the last call into DJL metrics.
+ * <p>
+ * Engines run kernels asynchronously on GPUs, where timestamps only bound the launch time unless
+ * synchronize is set, which reads back one element after the denoiser and after each step.
+ */
+public final class SamplingInstrumentation {
+
+    private static final int BUCKETS = 48;     // bucket b counts latencies in [2^b, 2^(b+1)) ns
+    private static final int[] PERCENTILES = {50, 90, 99};
+
+    public static final String STEP_METRIC = "sampling_step";
+    public static final String DENOISER_METRIC = "sampling_denoiser";
+    public static final String POSTERIOR_METRIC = "sampling_posterior";
+    public static final String ARRAYS_METRIC = "sampling_live_arrays";
+    public static final String BYTES_METRIC = "sampling_native_bytes";
+
+    private final int timesteps;
+    private final boolean synchronize;
+    private final AtomicLongArray histogram;        // (timesteps, BUCKETS)
+    private final AtomicLongArray stepNanos;        // per timestep
+    private final AtomicLongArray denoiserNanos;    // per timestep
+    private final Map<String, AtomicLongArray> peaks = new ConcurrentHashMap<>();   // label -> {arrays, bytes}
+
+    /**
+     * @param timesteps   the timesteps of the instrumented model
+     * @param synchronize wait for the device at every timestamp, for accurate timings of asynchronous engines
+     */
+    public SamplingInstrumentation(int timesteps, boolean synchronize) {
+        this.timesteps = timesteps;
+        this.synchronize = synchronize;
+        this.histogram = new AtomicLongArray(timesteps * BUCKETS);
+        this.stepNanos = new AtomicLongArray(timesteps);
+        this.denoiserNanos = new AtomicLongArray(timesteps);
+    }
+
+    /**
+     * Record the denoiser call of timestep i that started at start and produced xRecon.
+     */
+    void recordDenoiser(int i, NDArray xRecon, long start) {
+        if (synchronize) {
+            synchronize(xRecon);
+        }
+        denoiserNanos.addAndGet(i, System.nanoTime() - start);
+    }
+
+    /**
+     * Record the whole step of timestep i that started at start and left x, with request the loop's manager.
+     */
+    void recordStep(int i, NDArray x, NDManager request, long start) {
+        if (synchronize) {
+            synchronize(x);
+        }
+        long nanos = System.nanoTime() - start;
+        stepNanos.addAndGet(i, nanos);
+        histogram.incrementAndGet(i * BUCKETS + bucket(nanos));
+        recordManager("request", request);
+    }
+
+    /**
+     * Record the live arrays of the manager a loop returned its samples on.
+     */
+    void recordOutput(NDManager output) {
+        recordManager("output", output);
+    }
+
+    private void recordManager(String label, NDManager manager) {
+        long arrays = 0;
+        long bytes = 0;
+        for (NDArray array : manager.getManagedArrays()) {
+            if (!array.isReleased()) {
+                arrays++;
+                bytes += array.size() * array.getDataType().getNumOfBytes();
+            }
+        }
+        AtomicLongArray peak = peaks.computeIfAbsent(label, key -> new AtomicLongArray(2));
+        peak.accumulateAndGet(0, arrays, Math::max);
+        peak.accumulateAndGet(1, bytes, Math::max);
+    }
+
+    /**
+     * Publish the statistics recorded since the last call and reset them: per timestep that ran, the step
+     * latency percentiles and the mean step, denoiser and posterior times in microseconds, dimensioned by
+     * timestep; and per manager the peak live arrays and native bytes.
+     */
+    public void publish(Metrics metrics) {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < timesteps; i++) {
+            long steps = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                counts[b] = histogram.getAndSet(i * BUCKETS + b, 0);
+                steps += counts[b];
+            }
+            long step = stepNanos.getAndSet(i, 0);
+            long denoiser = denoiserNanos.getAndSet(i, 0);
+            if (steps == 0) {
+                continue;
+            }
+            Dimension timestep = new Dimension("timestep", Integer.toString(i));
+            metrics.addMetric(STEP_METRIC, step / 1e3 / steps, Unit.MICROSECONDS, timestep);
+            metrics.addMetric(DENOISER_METRIC, denoiser / 1e3 / steps, Unit.MICROSECONDS, timestep);
+            metrics.addMetric(POSTERIOR_METRIC, Math.max(step - denoiser, 0) / 1e3 / steps, Unit.MICROSECONDS,
+                    timestep);
+            for (int p : PERCENTILES) {
+                metrics.addMetric(STEP_METRIC + "_p" + p, percentile(counts, steps, p) / 1e3, Unit.MICROSECONDS,
+                        timestep);
+            }
+        }
+        for (Map.Entry<String, AtomicLongArray> entry : peaks.entrySet()) {
+            Dimension manager = new Dimension("manager", entry.getKey());
+            AtomicLongArray peak = entry.getValue();
+            metrics.addMetric(ARRAYS_METRIC, peak.getAndSet(0, 0), Unit.COUNT, manager);
+            metrics.addMetric(BYTES_METRIC, peak.getAndSet(1, 0), Unit.BYTES, manager);
+        }
+    }
+
+    public int getTimesteps() {
+        return timesteps;
+    }
+
+    private static int bucket(long nanos) {
+        return Math.min(63 - Long.numberOfLeadingZeros(Math.max(nanos, 1)), BUCKETS - 1);
+    }
+
+    /**
+     * The geometric midpoint of the bucket holding the p-th percentile, within a factor sqrt(2) of it.
+     */
+    private static double percentile(long[] counts, long total, int p) {
+        long rank = (long) Math.ceil(total * p / 100.0);
+        long seen = 0;
+        for (int b = 0; b < counts.length; b++) {
+            seen += counts[b];
+            if (seen >= rank) {
+                return Math.pow(2, b + 0.5);
+            }
+        }
+        return Math.pow(2, counts.length - 0.5);
+    }
+
+    /**
+     * Wait for the kernels producing x by reading back one element.
+     */
+    private static void synchronize(NDArray x) {
+        try (NDManager scope = x.getManager().newSubManager()) {
+            scope.tempAttachAll(x);
+            x.getFloat(new long[x.getShape().dimension()]);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package org.technodrome.diffuser.diffusion;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Draws the training timesteps of {@link GaussianDiffusion#loss}, set with
+ * {@link GaussianDiffusion#setTimestepSampler}.
+ * <p>
+ * A sampler that does not draw uniformly returns importance weights 1 / (timesteps * p(t)), which the loss
+ * applies per trajectory so its expectation stays that of uniform sampling.
+ */
+public interface TimestepSampler {
+
+    /**
+     * The number of timesteps drawn from, which must match the model's.
+     */
+    int getTimesteps();
+
+    /**
+     * Draw one timestep per trajectory of a batch.
+     *
+     * @param manager the batch's manager, where the arrays are created
+     */
+    Draw sample(NDManager manager, int batchSize);
+
+    /**
+     * Observe the training loss of the trajectories of a drawn batch.
+     *
+     * @param timesteps the drawn timesteps, from {@link Draw#timesteps()}
+     * @param losses    (B,) the loss of each trajectory, before importance weights
+     */
+    default void update(int[] timesteps, NDArray losses) {
+    }
+
+    /**
+     * @param timesteps host copy of t
+     * @param t         (B,) int64
+     * @param weights   (B,) float32 importance weights, or null if every weight is 1
+     */
+    record Draw(int[] timesteps, NDArray t, @Nullable NDArray weights) {
+
+    }
+}
@@ -1,4 +1,148 @@
 package org.technodrome.diffuser.diffusion;
 
-public class ValueDiffusion {
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import org.technodrome.diffuser.Denoiser;
+import org.technodrome.diffuser.diffusion.helpers.ConditioningPlan;
+import org.technodrome.diffuser.diffusion.helpers.loss.ValueLoss;
+
+import java.util.Map;
+
+/**
+ * A value function over noised trajectories, trained on the forward process of a {@link GaussianDiffusion} and
+ * used to rank or guide the plans it samples.
+ * <p>
+ * The value model is a {@link Denoiser} that maps (B, H, transitionDim) trajectories to (B, 1) values. It is
+ * composed with the trajectory model rather than extending it, since it shares the noise schedule and
+ * conditioning but none of the trajectory loss or sampling. Candidates are scored in one forward pass over the
+ * whole batch, and {@link #bestOfN} selects the top k with a partial top-k rather than sorting every candidate.
+ */
+public class ValueDiffusion implements AutoCloseable {
+
+    private final Denoiser valueModel;
+    private final GaussianDiffusion diffusion;
+    private final ValueLoss valueLoss;
+
+    /**
+     * @param valueModel the model mapping noised trajectories and their timesteps to values
+     * @param diffusion  the trajectory model whose noise schedule and conditioning the values are trained on;
+     *                   not closed with this model
+     * @param lossType   "value_l1" or "value_l2"
+     */
+    public ValueDiffusion(Denoiser valueModel, GaussianDiffusion diffusion, String lossType) {
+        this.valueModel = valueModel;
+        this.diffusion = diffusion;
+        this.valueLoss = ValueLoss.forType(lossType);
+    }
+
+    public GaussianDiffusion getDiffusion() {
+        return this.diffusion;
+    }
+
+    public ValueLoss getValueLoss() {
+        return this.valueLoss;
+    }
+
+    @Override
+    public void close() {
+        this.valueLoss.close();
+    }
+
+    /**
+     * The value loss at the given timesteps.
+     *
+     * @param xStart (B, H, transitionDim) clean trajectories
+     * @param cond   map timestep -> observation (B, observationDim)
+     * @param target (B, 1) values of the trajectories
+     * @param t      (B,) int64 timesteps
+     */
+    private NDArray pLosses(NDArray xStart, Map<Integer, NDArray> cond, NDArray target, NDArray t) {
+        NDArray xNoisy = this.diffusion.qSample(xStart, t, null);
+        try (ConditioningPlan plan = ConditioningPlan.fromConditions(xStart.getManager(), cond, xStart.getShape(),
+                this.diffusion.getActionDimension())) {
+            plan.apply(xNoisy);
+        }
+        NDArray pred = this.valueModel.forward(xNoisy, cond, t, true);
+        return this.valueLoss.evaluateWithInfo(pred, target);
+    }
+
+    /**
+     * The training loss of a batch, at a uniformly drawn timestep per trajectory.
+     *
+     * @param x      (B, H, transitionDim) clean trajectories
+     * @param cond   map timestep -> observation (B, observationDim)
+     * @param target (B, 1) values of the trajectories
+     */
+    public NDArray loss(NDArray x, Map<Integer, NDArray> cond, NDArray target) {
+        NDArray t = x.getManager().randomInteger(0, this.diffusion.getTimesteps(), new Shape(x.getShape().get(0)),
+                DataType.INT64);
+        return pLosses(x, cond, target, t);
+    }
+
+    /**
+     * @param x (B, H, transitionDim), noised to t
+     * @param t (B,) int64 timesteps
+     * @return (B, 1) values
+     */
+    public NDArray forward(NDArray x, Map<Integer, NDArray> cond, NDArray t) {
+        return this.valueModel.forward(x, cond, t, false);
+    }
+
+    /**
+     * Score clean candidate trajectories in one forward pass.
+     *
+     * @param candidates (N, H, transitionDim)
+     * @param cond       the conditions the candidates were sampled with, passed on to the value model
+     * @return (N) values
+     */
+    public NDArray values(NDArray candidates, Map<Integer, NDArray> cond) {
+        long n = candidates.getShape().get(0);
+        NDManager manager = candidates.getManager();
+        try (NDManager scope = manager.newSubManager()) {
+            NDArray t = scope.zeros(new Shape(n), DataType.INT64);
+            NDArray values = forward(candidates, cond, t).reshape(n);
+            values.attach(manager);
+            return values;
+        }
+    }
+
+    /**
+     * The k highest-valued candidates, best first, found with a top-k over the values instead of a full sort.
+     *
+     * @param candidates (N, H, transitionDim), e.g. the trajectories of one sampling call
+     * @param cond       the conditions the candidates were sampled with
+     * @param k          the number of candidates to keep, at most N
+     */
+    public Ranking bestOfN(NDArray candidates, Map<Integer, NDArray> cond, int k) {
+        long n = candidates.getShape().get(0);
+        if (k < 1 || k > n) {
+            throw new IllegalArgumentException("k must be in [1, " + n + "], got " + k);
+        }
+        NDManager manager = candidates.getManager();
+        try (NDManager scope = manager.newSubManager()) {
+            NDArray values = values(candidates, cond);
+            values.attach(scope);
+            NDList top = values.topK(k, 0, true, true);
+            NDArray indices = top.get(1);
+            NDArray best = candidates.get(new NDIndex("{}", indices));
+            NDList result = new NDList(best, top.get(0), indices);
+            result.attach(manager);
+            return new Ranking(best, result.get(1), indices);
+        }
+    }
+
+    /**
+     * Candidates ordered by value, best first.
+     *
+     * @param trajectories (k, H, transitionDim)
+     * @param values       (k)
+     * @param indices      (k) int64 rows of the candidates
+     */
+    public record Ranking(NDArray trajectories, NDArray values, NDArray indices) {
+
+    }
 }
@@ -0,0 +1,31 @@
+package org.technodrome.diffuser.diffusion;
+
+/**
+ * Settings of value-guided sampling, see {@link GaussianDiffusion#guidedSampleLoop}.
+ *
+ * @param valueFunction    the value model whose gradient the trajectories follow
+ * @param scale            the step size of every guide step
+ * @param guideSteps       the number of gradient steps before each denoising step
+ * @param stopGradTimestep timesteps below this one are not guided
+ * @param scaleGradByStd   whether to scale the gradient by the posterior variance of the timestep
+ */
+public record ValueGuide(ValueDiffusion valueFunction,
+                         double scale,
+                         int guideSteps,
+                         int stopGradTimestep,
+                         boolean scaleGradByStd) {
+
+    public ValueGuide {
+        if (guideSteps < 1) {
+            throw new IllegalArgumentException("guideSteps must be positive, got " + guideSteps);
+        }
+    }
+
+    /**
+     * The defaults of Diffuser's n_step_guided_p_sample: scale 0.001, one guide step at every timestep,
+     * scaled by the posterior variance.
+     */
+    public static ValueGuide of(ValueDiffusion valueFunction) {
+        return new ValueGuide(valueFunction, 0.001, 1, 0, true);
+    }
+}
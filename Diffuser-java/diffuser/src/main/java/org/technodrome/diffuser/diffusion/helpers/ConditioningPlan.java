@@ -0,0 +1,123 @@
+package org.technodrome.diffuser.diffusion.helpers;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+
+/**
+ * Conditioning compiled into a dense value tensor and a mask, applied to x with one in-place blend
+ * x = x * (1 - mask) + values * mask, however many entries are conditioned.
+ * <p>
+ * Build it once per sampling call with {@link #fromConditions} for the usual start-state conditioning, or with
+ * {@link #inpaint} for arbitrary masks such as goal states or partially observed transitions.
+ */
+public final class ConditioningPlan implements AutoCloseable {
+
+    private final NDArray keep;             // 1 - mask, broadcastable to x
+    private final NDArray maskedValues;     // values * mask, broadcastable to x
+    private final Map<Integer, NDArray> conditions;
+
+    private ConditioningPlan(@Nullable NDArray keep,
+                             @Nullable NDArray maskedValues,
+                             @Nullable Map<Integer, NDArray> conditions) {
+        this.keep = keep;
+        this.maskedValues = maskedValues;
+        this.conditions = conditions;
+    }
+
+    /**
+     * The plan equivalent to {@link NDUtils#applyConditioning}: x[:, t, actionDim:] = val for every entry.
+     *
+     * @param manager    the manager the plan's tensors are created on
+     * @param conditions map timestep t -> val (B, observationDim)
+     * @param xShape     (B, H, transitionDim)
+     * @param actionDim  size of action slice in transitionDim
+     */
+    public static ConditioningPlan fromConditions(NDManager manager,
+                                                  @Nullable Map<Integer, NDArray> conditions,
+                                                  Shape xShape,
+                                                  int actionDim) {
+        if (conditions == null || conditions.isEmpty()) {
+            return new ConditioningPlan(null, null, conditions);
+        }
+
+        NDArray values = manager.zeros(xShape);
+        NDArray mask = manager.zeros(new Shape(1, xShape.get(1), xShape.get(2)));
+        for (Map.Entry<Integer, NDArray> e : conditions.entrySet()) {
+            values.set(new NDIndex(":, {}, {}:", e.getKey(), actionDim), e.getValue());
+            mask.set(new NDIndex("0, {}, {}:", e.getKey(), actionDim), 1f);
+        }
+        // values is already zero outside the mask
+        NDArray keep = mask.mul(-1).addi(1);
+        mask.close();
+        return new ConditioningPlan(keep, values, conditions);
+    }
+
+    /**
+     * A plan that overwrites x wherever mask is set.
+     *
+     * @param values the target values, broadcastable to (B, H, transitionDim)
+     * @param mask   boolean or 0/1 mask, broadcastable to (B, H, transitionDim), e.g. (H, transitionDim)
+     */
+    public static ConditioningPlan inpaint(NDArray values, NDArray mask) {
+        NDArray floatMask = mask.toType(DataType.FLOAT32, true);
+        NDArray maskedValues = values.mul(floatMask);
+        NDArray keep = floatMask.mul(-1).addi(1);
+        floatMask.close();
+        return new ConditioningPlan(keep, maskedValues, null);
+    }
+
+    /**
+     * Blend the plan into x in place.
+     *
+     * @return x
+     */
+    public NDArray apply(NDArray x) {
+        if (keep != null) {
+            x.muli(keep).addi(maskedValues);
+        }
+        return x;
+    }
+
+    /**
+     * Blend the plan into a copy of x, for arrays that autograd records.
+     *
+     * @return the blended array, or x itself if the plan conditions nothing
+     */
+    public NDArray blend(NDArray x) {
+        if (keep == null) {
+            return x;
+        }
+        // out of place throughout: engines such as MXNet reject in-place writes inside a recording
+        return x.mul(keep).add(maskedValues);
+    }
+
+    /**
+     * The timestep conditions the plan was built from, passed on to the denoiser; null for inpainting plans.
+     */
+    @Nullable
+    public Map<Integer, NDArray> getConditions() {
+        return conditions;
+    }
+
+    /**
+     * The manager the plan's tensors live on, or null if the plan conditions nothing.
+     */
+    @Nullable
+    public NDManager getManager() {
+        return keep == null ? null : keep.getManager();
+    }
+
+    @Override
+    public void close() {
+        if (keep != null) {
+            keep.close();
+            maskedValues.close();
+        }
+    }
+}
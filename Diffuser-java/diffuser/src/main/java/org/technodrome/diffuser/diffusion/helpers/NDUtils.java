@@ -1,6 +1,7 @@
 package org.technodrome.diffuser.diffusion.helpers;
 
 import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
 import ai.djl.ndarray.NDManager;
 import ai.djl.ndarray.index.NDIndex;
 import ai.djl.ndarray.types.DataType;
@@ -37,6 +38,59 @@ public class NDUtils {
         return out.reshape(new Shape(newDims));
     }
 
+    /**
+     * Gather the rows of a packed (timesteps, K) coefficient table at the times in tensor t, split into K
+     * tensors of shape (b, 1, ..., 1) with rank equal to the rank of xShape.
+     * <p>
+     * One gather replaces K calls to {@link #extract}. The result lives on the manager of t, not of the
+     * (usually shared) table.
+     *
+     * @param table  a (timesteps, K) table
+     * @param t      1 rank-1 tensor (vector) containing a list of times
+     * @param xShape the shape the outputs should broadcast against, of rank at least 2
+     * @return K tensors, one per column of the table
+     */
+    public static NDList extractAll(NDArray table, NDArray t, Shape xShape) {
+        long b = t.getShape().get(0);
+        long k = table.getShape().get(1);
+        NDArray tIdx = t.toType(DataType.INT64, false);
+
+        // (b, K), moved off the table's manager before anything else is derived from it
+        NDArray rows = table.get(new NDIndex("{}", tIdx));
+        rows.attach(t.getManager());
+
+        // (b, K, 1, ..., 1), so that splitting along axis 1 leaves (b, 1, ..., 1) pieces
+        long[] newDims = new long[xShape.dimension()];
+        newDims[0] = b;
+        newDims[1] = k;
+        for (int i = 2; i < newDims.length; i++) newDims[i] = 1;
+
+        return rows.reshape(new Shape(newDims)).split(k, 1);
+    }
+
+    /**
+     * Return a cosine beta schedule with the given number of steps, computed on the host in double precision.
+     *
+     * @param steps the number of steps
+     * @return the cosine beta schedule, as a double array of size steps
+     */
+    public static double[] cosineBetaSchedule(int steps) {
+        double s = 0.008;
+        int stepsPlusOne = steps + 1;
+        double[] alphasCumProd = new double[stepsPlusOne];
+        for (int i = 0; i < stepsPlusOne; i++) {
+            double x = (double) i / steps;
+            double f = Math.cos((x + s) / (1.0 + s) * Math.PI * 0.5);
+            alphasCumProd[i] = f * f;
+        }
+        double[] betas = new double[steps];
+        for (int i = 0; i < steps; i++) {
+            double beta = 1.0 - alphasCumProd[i + 1] / alphasCumProd[i];
+            betas[i] = Math.min(Math.max(beta, 0.0), 0.999);
+        }
+        return betas;
+    }
+
     /**
      * Return a cosine beta schedule with the given number of steps
      *
@@ -68,6 +122,9 @@ public class NDUtils {
      * actionDim: size of action slice in transitionDim
      * <p>
      * Overwrites x[:, t, actionDim:] with val
+     * <p>
+     * Issues one indexed write per condition; loops that condition repeatedly should build a
+     * {@link ConditioningPlan} once instead.
      */
     public static NDArray applyConditioning(NDArray x,
                                             Map<Integer, NDArray> conditions,
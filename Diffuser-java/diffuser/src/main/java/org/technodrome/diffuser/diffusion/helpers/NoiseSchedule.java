@@ -0,0 +1,172 @@
+package org.technodrome.diffuser.diffusion.helpers;
+
+/**
+ * The per-timestep scalars of a diffusion noise schedule, computed once on the host in double precision.
+ * <p>
+ * Instances are immutable and shared between every diffusion model using the same schedule; see
+ * {@link NoiseScheduleRegistry} for the cached device copies.
+ */
+public final class NoiseSchedule {
+
+    public enum Type {
+        COSINE,
+        LINEAR
+    }
+
+    // columns of the packed coefficient table, see coefficientTable()
+    public static final int SQRT_ALPHAS_CUM_PROD = 0;
+    public static final int SQRT_ONE_MINUS_ALPHAS_CUM_PROD = 1;
+    public static final int INVERSE_SQRT_ALPHAS_CUM_PROD = 2;
+    public static final int INVERSE_SQRT_ONE_MINUS_ALPHAS_CUM_PROD = 3;
+    public static final int POSTERIOR_MEAN_COEFFICIENT_1 = 4;
+    public static final int POSTERIOR_MEAN_COEFFICIENT_2 = 5;
+    public static final int POSTERIOR_VARIANCE = 6;
+    public static final int POSTERIOR_LOG_VARIANCE_CLIPPED = 7;
+    public static final int COEFFICIENTS = 8;
+
+    private final Type type;
+    private final int timesteps;
+    private final double[] betas;
+    private final double[] alphasCumProd;
+    private final double[] alphasCumProdPrev;
+    private final double[] sqrtAlphasCumProd;
+    private final double[] sqrtOneMinusAlphasCumProd;
+    private final double[] inverseSqrtAlphasCumprod;
+    private final double[] inverseSqrtOneMinusAlphasCumprod;
+    private final double[] posteriorVariance;
+    private final double[] posteriorLogVarianceClipped;
+    private final double[] posteriorMeanCoefficient1;
+    private final double[] posteriorMeanCoefficient2;
+
+    public NoiseSchedule(Type type, int timesteps) {
+        if (timesteps < 1) {
+            throw new IllegalArgumentException("timesteps must be positive, got " + timesteps);
+        }
+        this.type = type;
+        this.timesteps = timesteps;
+        this.betas = switch (type) {
+            case COSINE -> NDUtils.cosineBetaSchedule(timesteps);
+            case LINEAR -> linearBetaSchedule(timesteps);
+        };
+
+        this.alphasCumProd = new double[timesteps];
+        this.alphasCumProdPrev = new double[timesteps];
+        double product = 1.0;
+        for (int i = 0; i < timesteps; i++) {
+            this.alphasCumProdPrev[i] = product;
+            product *= 1.0 - this.betas[i];
+            this.alphasCumProd[i] = product;
+        }
+
+        this.sqrtAlphasCumProd = new double[timesteps];
+        this.sqrtOneMinusAlphasCumProd = new double[timesteps];
+        this.inverseSqrtAlphasCumprod = new double[timesteps];
+        this.inverseSqrtOneMinusAlphasCumprod = new double[timesteps];
+        this.posteriorVariance = new double[timesteps];
+        this.posteriorLogVarianceClipped = new double[timesteps];
+        this.posteriorMeanCoefficient1 = new double[timesteps];
+        this.posteriorMeanCoefficient2 = new double[timesteps];
+        for (int i = 0; i < timesteps; i++) {
+            double oneMinusAlphasCumProd = 1.0 - this.alphasCumProd[i];
+            double oneMinusAlphasCumProdPrev = 1.0 - this.alphasCumProdPrev[i];
+            this.sqrtAlphasCumProd[i] = Math.sqrt(this.alphasCumProd[i]);
+            this.sqrtOneMinusAlphasCumProd[i] = Math.sqrt(oneMinusAlphasCumProd);
+            this.inverseSqrtAlphasCumprod[i] = 1.0 / this.sqrtAlphasCumProd[i];
+            this.inverseSqrtOneMinusAlphasCumprod[i] = Math.sqrt(1.0 / this.alphasCumProd[i] - 1.0);
+            this.posteriorVariance[i] = this.betas[i] * oneMinusAlphasCumProdPrev / oneMinusAlphasCumProd;
+            this.posteriorLogVarianceClipped[i] = Math.log(Math.max(this.posteriorVariance[i], 1e-20));
+            this.posteriorMeanCoefficient1[i] = this.betas[i] * Math.sqrt(this.alphasCumProdPrev[i]) / oneMinusAlphasCumProd;
+            this.posteriorMeanCoefficient2[i] = oneMinusAlphasCumProdPrev * Math.sqrt(1.0 - this.betas[i]) / oneMinusAlphasCumProd;
+        }
+    }
+
+    /**
+     * The linear schedule of the original DDPM paper, scaled to the number of steps.
+     */
+    private static double[] linearBetaSchedule(int steps) {
+        double scale = 1000.0 / steps;
+        double start = scale * 1e-4;
+        double end = scale * 0.02;
+        double[] betas = new double[steps];
+        for (int i = 0; i < steps; i++) {
+            betas[i] = steps > 1 ? start + (end - start) * i / (steps - 1) : start;
+        }
+        return betas;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public int getTimesteps() {
+        return timesteps;
+    }
+
+    public double beta(int t) {
+        return betas[t];
+    }
+
+    public double alphasCumProd(int t) {
+        return alphasCumProd[t];
+    }
+
+    public double alphasCumProdPrev(int t) {
+        return alphasCumProdPrev[t];
+    }
+
+    public double sqrtAlphasCumProd(int t) {
+        return sqrtAlphasCumProd[t];
+    }
+
+    public double sqrtOneMinusAlphasCumProd(int t) {
+        return sqrtOneMinusAlphasCumProd[t];
+    }
+
+    public double inverseSqrtAlphasCumprod(int t) {
+        return inverseSqrtAlphasCumprod[t];
+    }
+
+    public double inverseSqrtOneMinusAlphasCumprod(int t) {
+        return inverseSqrtOneMinusAlphasCumprod[t];
+    }
+
+    public double posteriorVariance(int t) {
+        return posteriorVariance[t];
+    }
+
+    public double posteriorLogVarianceClipped(int t) {
+        return posteriorLogVarianceClipped[t];
+    }
+
+    public double posteriorMeanCoefficient1(int t) {
+        return posteriorMeanCoefficient1[t];
+    }
+
+    public double posteriorMeanCoefficient2(int t) {
+        return posteriorMeanCoefficient2[t];
+    }
+
+    /**
+     * Every per-timestep coefficient packed row-major as a (timesteps, COEFFICIENTS) table, so that one gather
+     * by timestep yields all of them.
+     */
+    float[] coefficientTable() {
+        double[][] columns = new double[COEFFICIENTS][];
+        columns[SQRT_ALPHAS_CUM_PROD] = sqrtAlphasCumProd;
+        columns[SQRT_ONE_MINUS_ALPHAS_CUM_PROD] = sqrtOneMinusAlphasCumProd;
+        columns[INVERSE_SQRT_ALPHAS_CUM_PROD] = inverseSqrtAlphasCumprod;
+        columns[INVERSE_SQRT_ONE_MINUS_ALPHAS_CUM_PROD] = inverseSqrtOneMinusAlphasCumprod;
+        columns[POSTERIOR_MEAN_COEFFICIENT_1] = posteriorMeanCoefficient1;
+        columns[POSTERIOR_MEAN_COEFFICIENT_2] = posteriorMeanCoefficient2;
+        columns[POSTERIOR_VARIANCE] = posteriorVariance;
+        columns[POSTERIOR_LOG_VARIANCE_CLIPPED] = posteriorLogVarianceClipped;
+
+        float[] table = new float[timesteps * COEFFICIENTS];
+        for (int t = 0; t < timesteps; t++) {
+            for (int k = 0; k < COEFFICIENTS; k++) {
+                table[t * COEFFICIENTS + k] = (float) columns[k][t];
+            }
+        }
+        return table;
+    }
+}
@@ -0,0 +1,138 @@
+package org.technodrome.diffuser.diffusion.helpers;
+
+import ai.djl.Device;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A process-wide cache of noise schedules.
+ * <p>
+ * Host schedules are keyed by (type, timesteps) and device copies by (type, timesteps, device). Device copies
+ * are reference counted: every diffusion model acquires one and releases it when closed, and only unreferenced
+ * entries are evicted once the cache holds more than its capacity.
+ * <p>
+ * The device arrays are shared between every holder and must be treated as read-only.
+ */
+public final class NoiseScheduleRegistry {
+
+    private static final NoiseScheduleRegistry SHARED = new NoiseScheduleRegistry(16);
+
+    private final int capacity;
+    private final Map<HostKey, NoiseSchedule> hostSchedules = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<DeviceKey, Entry> deviceSchedules = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Device, NDManager> managers = new HashMap<>();
+
+    public NoiseScheduleRegistry(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive, got " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    public static NoiseScheduleRegistry shared() {
+        return SHARED;
+    }
+
+    /**
+     * Return the host schedule, computing it on first use.
+     */
+    public synchronized NoiseSchedule getSchedule(NoiseSchedule.Type type, int timesteps) {
+        HostKey key = new HostKey(type, timesteps);
+        NoiseSchedule schedule = hostSchedules.get(key);
+        if (schedule == null) {
+            schedule = new NoiseSchedule(type, timesteps);
+            hostSchedules.put(key, schedule);
+            evictHostSchedules();
+        }
+        return schedule;
+    }
+
+    /**
+     * Return the device copy of a schedule, creating it on first use. Every call must be paired with
+     * {@link #release(DeviceSchedule)}.
+     */
+    public synchronized DeviceSchedule acquire(NoiseSchedule.Type type, int timesteps, Device device) {
+        DeviceKey key = new DeviceKey(type, timesteps, device);
+        Entry entry = deviceSchedules.get(key);
+        if (entry == null) {
+            NoiseSchedule host = getSchedule(type, timesteps);
+            NDManager root = managers.computeIfAbsent(device, NDManager::newBaseManager);
+            NDManager manager = root.newSubManager();
+            entry = new Entry(new DeviceSchedule(host, manager), manager);
+            deviceSchedules.put(key, entry);
+        }
+        entry.references++;
+        evictDeviceSchedules();
+        return entry.schedule;
+    }
+
+    public synchronized void release(DeviceSchedule schedule) {
+        NoiseSchedule host = schedule.host();
+        DeviceKey key = new DeviceKey(host.getType(), host.getTimesteps(), schedule.device());
+        Entry entry = deviceSchedules.get(key);
+        if (entry == null || entry.schedule != schedule) {
+            return;
+        }
+        entry.references = Math.max(entry.references - 1, 0);
+        evictDeviceSchedules();
+    }
+
+    private void evictHostSchedules() {
+        Iterator<HostKey> keys = hostSchedules.keySet().iterator();
+        while (hostSchedules.size() > capacity && keys.hasNext()) {
+            keys.next();
+            keys.remove();
+        }
+    }
+
+    private void evictDeviceSchedules() {
+        Iterator<Entry> entries = deviceSchedules.values().iterator();
+        while (deviceSchedules.size() > capacity && entries.hasNext()) {
+            Entry entry = entries.next();
+            if (entry.references == 0) {
+                entry.manager.close();
+                entries.remove();
+            }
+        }
+    }
+
+    /**
+     * The packed (timesteps, {@link NoiseSchedule#COEFFICIENTS}) FLOAT32 coefficient table used by the batched
+     * (per-sample timestep) paths, see {@link NDUtils#extractAll}.
+     */
+    public record DeviceSchedule(NoiseSchedule host, Device device, NDArray coefficients) {
+
+        private DeviceSchedule(NoiseSchedule host, NDManager manager) {
+            this(host,
+                    manager.getDevice(),
+                    manager.create(host.coefficientTable(), new Shape(host.getTimesteps(), NoiseSchedule.COEFFICIENTS)));
+        }
+    }
+
+    private record HostKey(NoiseSchedule.Type type, int timesteps) {
+    }
+
+    private record DeviceKey(NoiseSchedule.Type type, int timesteps, Device device) {
+        DeviceKey {
+            Objects.requireNonNull(device);
+        }
+    }
+
+    private static final class Entry {
+        private final DeviceSchedule schedule;
+        private final NDManager manager;
+        private int references;
+
+        private Entry(DeviceSchedule schedule, NDManager manager) {
+            this.schedule = schedule;
+            this.manager = manager;
+        }
+    }
+}
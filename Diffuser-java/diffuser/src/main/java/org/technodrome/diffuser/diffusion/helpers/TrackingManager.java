@@ -0,0 +1,196 @@
+package org.technodrome.diffuser.diffusion.helpers;
+
+import ai.djl.Device;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A request-scoped sub-manager that accounts for the native memory of one sampling or training request.
+ * <p>
+ * Everything the request allocates on {@link #getManager()} is freed when it closes. {@link #check()} sums the
+ * live bytes of that manager and its sub-managers, keeps the peak and fails the request once they exceed the
+ * budget, so a long-lived process holds at most budget bytes per request in flight. Arrays the request leaves
+ * behind on the parent manager, which would otherwise live as long as the model, are found on close by
+ * comparing the parent's own arrays with those it held at open; they are logged and listed in the
+ * {@link Report}.
+ * <p>
+ * That comparison cannot tell which request left an array, so it is only made for requests that had their
+ * parent to themselves. Requests open on the same parent at the same time, e.g. concurrent sampling on one
+ * model, still account for their own managers but skip the escape check, which their reports record.
+ */
+public final class TrackingManager implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TrackingManager.class);
+    // the requests open on each parent manager, only read and written inside compute
+    private static final Map<NDManager, Set<TrackingManager>> OPEN = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final NDManager parent;
+    private final NDManager manager;
+    private final long budgetBytes;
+    private final Set<String> parentArrays;
+    // written by the request's thread in check(), read by any thread through getPeakBytes()
+    private volatile long peakBytes;
+    private volatile boolean overlapped;
+    private Report report;
+
+    private TrackingManager(String name, NDManager parent, Device device, long budgetBytes) {
+        this.name = name;
+        this.parent = parent;
+        this.budgetBytes = budgetBytes;
+        this.parentArrays = ownArrays(parent);
+        this.manager = parent.newSubManager(device);
+        this.manager.setName(name);
+    }
+
+    /**
+     * @param name        the request's name in reports
+     * @param parent      the long-lived manager the request's manager is created under, e.g. a model's
+     * @param device      the device of the request's manager
+     * @param budgetBytes the most native bytes the request may hold at a {@link #check()}
+     */
+    public static TrackingManager open(String name, NDManager parent, Device device, long budgetBytes) {
+        if (budgetBytes <= 0) {
+            throw new IllegalArgumentException("budgetBytes must be positive, got " + budgetBytes);
+        }
+        TrackingManager tracking = new TrackingManager(name, parent, device, budgetBytes);
+        OPEN.compute(parent, (p, open) -> {
+            if (open == null) {
+                open = new HashSet<>();
+            }
+            if (!open.isEmpty()) {
+                tracking.overlapped = true;
+                open.forEach(other -> other.overlapped = true);
+            }
+            open.add(tracking);
+            return open;
+        });
+        return tracking;
+    }
+
+    /**
+     * The manager to allocate the request's arrays on.
+     */
+    public NDManager getManager() {
+        return manager;
+    }
+
+    /**
+     * Account for the arrays live on the request's manager now.
+     * <p>
+     * This walks every array of the manager and its sub-managers, so a call costs O(live arrays). The sampling
+     * loops call it once per step, before the step's sub-manager closes: the walk covers the trajectory, the
+     * optional chain and one step's intermediates, which does not grow with the number of steps. Call it from
+     * the request's thread only.
+     *
+     * @return their native bytes
+     * @throws IllegalStateException if they exceed the budget
+     */
+    public long check() {
+        long bytes = bytes(manager.getManagedArrays());
+        peakBytes = Math.max(peakBytes, bytes);
+        if (bytes > budgetBytes) {
+            throw new IllegalStateException("Request " + name + " holds " + bytes + " native bytes, over its budget of "
+                    + budgetBytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * Exempt arrays the request returns to its caller from the escape report, for when the parent manager is
+     * also the caller's.
+     */
+    public void returning(NDArray... arrays) {
+        for (NDArray array : arrays) {
+            if (array != null) {
+                parentArrays.add(array.getUid());
+            }
+        }
+    }
+
+    public long getPeakBytes() {
+        return peakBytes;
+    }
+
+    /**
+     * The accounting of a closed request, or null while it is open.
+     */
+    public Report getReport() {
+        return report;
+    }
+
+    /**
+     * Free the request's arrays and report the arrays it left on the parent manager, unless another request was
+     * open on the parent meanwhile.
+     */
+    @Override
+    public void close() {
+        if (report != null) {
+            return;
+        }
+        manager.close();
+        OPEN.computeIfPresent(parent, (p, open) -> {
+            open.remove(this);
+            return open.isEmpty() ? null : open;
+        });
+        if (overlapped) {
+            report = new Report(name, peakBytes, false, 0, List.of());
+            logger.debug("Request {} overlapped another request on {}, escapes not checked", name, parent.getName());
+            return;
+        }
+        List<String> escaped = new ArrayList<>();
+        long escapedBytes = 0;
+        for (NDArray array : parent.getManagedArrays()) {
+            if (array.getManager() == parent && !array.isReleased() && !parentArrays.contains(array.getUid())) {
+                escaped.add(array.getUid() + " " + array.getDataType() + array.getShape()
+                        + (array.getName() != null ? " " + array.getName() : ""));
+                escapedBytes += array.size() * array.getDataType().getNumOfBytes();
+            }
+        }
+        report = new Report(name, peakBytes, true, escapedBytes, escaped);
+        if (!escaped.isEmpty()) {
+            logger.warn("Request {} left {} arrays ({} bytes) on {}: {}", name, escaped.size(), escapedBytes,
+                    parent.getName(), escaped);
+        }
+    }
+
+    private static Set<String> ownArrays(NDManager manager) {
+        Set<String> uids = new HashSet<>();
+        for (NDArray array : manager.getManagedArrays()) {
+            if (array.getManager() == manager) {
+                uids.add(array.getUid());
+            }
+        }
+        return uids;
+    }
+
+    private static long bytes(List<NDArray> arrays) {
+        long bytes = 0;
+        for (NDArray array : arrays) {
+            if (!array.isReleased()) {
+                bytes += array.size() * array.getDataType().getNumOfBytes();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @param peakBytes      the most native bytes seen at a {@link #check()}
+     * @param escapesChecked whether the request had the parent manager to itself, so escapes were looked for
+     * @param escapedBytes   the native bytes of the escaped arrays
+     * @param escaped        uid, type, shape and name of every array the request left on the parent manager
+     */
+    public record Report(String name, long peakBytes, boolean escapesChecked, long escapedBytes,
+                         List<String> escaped) {
+
+    }
+}
@@ -0,0 +1,127 @@
+package org.technodrome.diffuser.diffusion.helpers.loss;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDArrays;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Running loss statistics kept on the device, so that recording them never waits for it.
+ * <p>
+ * Every step folds its sums, minima and maxima into float64 accumulators with a few asynchronous tensor
+ * operations. Nothing reaches the host until {@link #snapshot}, which copies all accumulators in one transfer
+ * and starts a new interval; call it on logging intervals, not every step.
+ */
+public final class LossDiagnostics implements AutoCloseable {
+
+    private final int sumCount;
+    private final int minCount;
+    private final int maxCount;
+    private NDManager manager;
+    private NDArray sums;
+    private NDArray mins;
+    private NDArray maxs;
+    private long steps;
+    private long samples;
+
+    /**
+     * @param sumCount the number of summed statistics
+     * @param minCount the number of minimized statistics
+     * @param maxCount the number of maximized statistics
+     */
+    LossDiagnostics(int sumCount, int minCount, int maxCount) {
+        this.sumCount = sumCount;
+        this.minCount = minCount;
+        this.maxCount = maxCount;
+    }
+
+    /**
+     * Fold one step into the accumulators. The arguments are neither recorded for autograd nor synchronized.
+     *
+     * @param stepSums  (sumCount)
+     * @param stepMins  (minCount), or null if there are none
+     * @param stepMaxs  (maxCount), or null if there are none
+     * @param batchSize the number of samples of the step
+     */
+    synchronized void record(NDArray stepSums, @Nullable NDArray stepMins, @Nullable NDArray stepMaxs, long batchSize) {
+        if (manager == null) {
+            manager = NDManager.newBaseManager(stepSums.getDevice());
+            reset();
+        }
+        sums.addi(toAccumulator(stepSums));
+        if (minCount > 0) {
+            NDArray next = mins.minimum(toAccumulator(stepMins));
+            mins.close();
+            mins = next;
+        }
+        if (maxCount > 0) {
+            NDArray next = maxs.maximum(toAccumulator(stepMaxs));
+            maxs.close();
+            maxs = next;
+        }
+        steps++;
+        samples += batchSize;
+    }
+
+    private static NDArray toAccumulator(NDArray stats) {
+        return stats.stopGradient().toType(DataType.FLOAT64, false);
+    }
+
+    /**
+     * Copy the accumulators to the host and start a new interval.
+     *
+     * @return the interval's statistics, or null if nothing was recorded since the last snapshot
+     */
+    @Nullable
+    synchronized Snapshot snapshot() {
+        if (steps == 0) {
+            return null;
+        }
+        double[] values;
+        try (NDArray all = NDArrays.concat(new NDList(sums, mins, maxs))) {
+            values = all.toDoubleArray();
+        }
+        double[] s = new double[sumCount];
+        double[] lo = new double[minCount];
+        double[] hi = new double[maxCount];
+        System.arraycopy(values, 0, s, 0, sumCount);
+        System.arraycopy(values, sumCount, lo, 0, minCount);
+        System.arraycopy(values, sumCount + minCount, hi, 0, maxCount);
+        Snapshot snapshot = new Snapshot(s, lo, hi, steps, samples);
+
+        sums.close();
+        mins.close();
+        maxs.close();
+        reset();
+        return snapshot;
+    }
+
+    private void reset() {
+        sums = manager.zeros(new Shape(sumCount), DataType.FLOAT64);
+        mins = manager.full(new Shape(minCount), Float.POSITIVE_INFINITY, DataType.FLOAT64);
+        maxs = manager.full(new Shape(maxCount), Float.NEGATIVE_INFINITY, DataType.FLOAT64);
+        steps = 0;
+        samples = 0;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (manager != null) {
+            manager.close();
+            manager = null;
+        }
+    }
+
+    /**
+     * The statistics of one interval.
+     *
+     * @param steps   the number of recorded steps
+     * @param samples the number of samples over those steps
+     */
+    record Snapshot(double[] sums, double[] mins, double[] maxs, long steps, long samples) {
+
+    }
+}
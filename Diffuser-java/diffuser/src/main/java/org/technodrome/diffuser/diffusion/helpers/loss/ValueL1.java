@@ -1,9 +1,15 @@
 package org.technodrome.diffuser.diffusion.helpers.loss;
 
-public class ValueL1 {
-    //class ValueL1(ValueLoss):
-//
-//        def _loss(self, pred, targ):
-//        return torch.abs(pred - targ)
-//
+import ai.djl.ndarray.NDArray;
+
+public class ValueL1 extends ValueLoss {
+
+    public ValueL1() {
+        super("ValueL1");
+    }
+
+    @Override
+    protected NDArray elementLoss(NDArray pred, NDArray targ) {
+        return pred.sub(targ).abs();
+    }
 }
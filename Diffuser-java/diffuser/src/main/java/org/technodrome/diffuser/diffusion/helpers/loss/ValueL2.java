@@ -1,8 +1,15 @@
 package org.technodrome.diffuser.diffusion.helpers.loss;
 
-public class ValueL2 {
-    //class ValueL2(ValueLoss):
-//
-//        def _loss(self, pred, targ):
-//        return F.mse_loss(pred, targ, reduction='none')
+import ai.djl.ndarray.NDArray;
+
+public class ValueL2 extends ValueLoss {
+
+    public ValueL2() {
+        super("ValueL2");
+    }
+
+    @Override
+    protected NDArray elementLoss(NDArray pred, NDArray targ) {
+        return pred.sub(targ).square();
+    }
 }
@@ -1,28 +1,102 @@
 package org.technodrome.diffuser.diffusion.helpers.loss;
 
-public class ValueLoss {
-    //    class ValueLoss(nn.Module):
-//    def __init__(self, *args):
-//            super().__init__()
-//
-//    def forward(self, pred, targ):
-//    loss = self._loss(pred, targ).mean()
-//
-//        if len(pred) > 1:
-//    corr = np.corrcoef(
-//            utils.to_np(pred).squeeze(),
-//                utils.to_np(targ).squeeze()
-//            )[0,1]
-//                    else:
-//    corr = np.NaN
-//
-//            info = {
-//            'mean_pred': pred.mean(), 'mean_targ': targ.mean(),
-//            'min_pred': pred.min(), 'min_targ': targ.min(),
-//            'max_pred': pred.max(), 'max_targ': targ.max(),
-//            'corr': corr,
-//}
-//
-//        return loss, info
-//
+import ai.djl.metric.Metrics;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDArrays;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.training.loss.Loss;
+
+/**
+ * The mean loss of predicted values against their targets.
+ * <p>
+ * The Python version computes the mean, min and max of pred and targ and their correlation on every call,
+ * which would copy them to the host every step. Here {@link #evaluateWithInfo} only folds the moments into
+ * device-side accumulators, and {@link #publishDiagnostics} turns them into the same statistics over the whole
+ * interval since the last call.
+ */
+public abstract class ValueLoss extends Loss implements AutoCloseable {
+
+    // sums: loss, pred, targ, pred^2, targ^2, pred * targ; mins and maxs: pred, targ
+    private final LossDiagnostics diagnostics = new LossDiagnostics(6, 2, 2);
+
+    protected ValueLoss(String name) {
+        super(name);
+    }
+
+    /**
+     * The loss named by a value model's lossType, "value_l1" or "value_l2".
+     */
+    public static ValueLoss forType(String lossType) {
+        return switch (lossType) {
+            case "value_l1" -> new ValueL1();
+            case "value_l2" -> new ValueL2();
+            default -> throw new IllegalArgumentException("Unknown value loss type " + lossType);
+        };
+    }
+
+    /**
+     * The unreduced loss.
+     *
+     * @param pred (B, 1) predicted values
+     * @param targ (B, 1) target values
+     */
+    protected abstract NDArray elementLoss(NDArray pred, NDArray targ);
+
+    @Override
+    public NDArray evaluate(NDList labels, NDList predictions) {
+        return elementLoss(predictions.singletonOrThrow(), labels.singletonOrThrow()).mean();
+    }
+
+    /**
+     * The mean loss, also recorded for {@link #publishDiagnostics} without waiting for the device.
+     */
+    public NDArray evaluateWithInfo(NDArray pred, NDArray targ) {
+        NDArray loss = elementLoss(pred, targ).mean();
+
+        NDArray p = pred.stopGradient().toType(DataType.FLOAT64, false).flatten();
+        NDArray t = targ.stopGradient().toType(DataType.FLOAT64, false).flatten();
+        NDArray sums = NDArrays.stack(new NDList(
+                loss.stopGradient().toType(DataType.FLOAT64, false),
+                p.sum(), t.sum(), p.square().sum(), t.square().sum(), p.mul(t).sum()));
+        NDArray mins = NDArrays.stack(new NDList(p.min(), t.min()));
+        NDArray maxs = NDArrays.stack(new NDList(p.max(), t.max()));
+        diagnostics.record(sums, mins, maxs, p.size());
+        return loss;
+    }
+
+    /**
+     * Add the interval's mean loss as "name", and mean_pred, mean_targ, min_pred, min_targ, max_pred, max_targ
+     * and corr as "name_mean_pred" and so on. corr is NaN for fewer than two samples or constant values.
+     * This is the only call that waits for the device.
+     */
+    public void publishDiagnostics(Metrics metrics) {
+        LossDiagnostics.Snapshot snapshot = diagnostics.snapshot();
+        if (snapshot == null) {
+            return;
+        }
+        double[] s = snapshot.sums();
+        double n = snapshot.samples();
+        double covariance = n * s[5] - s[1] * s[2];
+        double predVariance = n * s[3] - s[1] * s[1];
+        double targVariance = n * s[4] - s[2] * s[2];
+        double corr = n > 1 && predVariance > 0 && targVariance > 0
+                ? covariance / Math.sqrt(predVariance * targVariance)
+                : Double.NaN;
+
+        String name = getName();
+        metrics.addMetric(name, s[0] / snapshot.steps());
+        metrics.addMetric(name + "_mean_pred", s[1] / n);
+        metrics.addMetric(name + "_mean_targ", s[2] / n);
+        metrics.addMetric(name + "_min_pred", snapshot.mins()[0]);
+        metrics.addMetric(name + "_min_targ", snapshot.mins()[1]);
+        metrics.addMetric(name + "_max_pred", snapshot.maxs()[0]);
+        metrics.addMetric(name + "_max_targ", snapshot.maxs()[1]);
+        metrics.addMetric(name + "_corr", corr);
+    }
+
+    @Override
+    public void close() {
+        diagnostics.close();
+    }
 }
@@ -1,9 +1,15 @@
 package org.technodrome.diffuser.diffusion.helpers.loss;
 
-public class WeightedL1 {
-    //class WeightedL1(WeightedLoss):
-//
-//        def _loss(self, pred, targ):
-//        return torch.abs(pred - targ)
-//
+import ai.djl.ndarray.NDArray;
+
+public class WeightedL1 extends WeightedLoss {
+
+    public WeightedL1(NDArray weights, int actionDim) {
+        super("WeightedL1", weights, actionDim);
+    }
+
+    @Override
+    protected NDArray elementLoss(NDArray pred, NDArray targ) {
+        return pred.sub(targ).abs();
+    }
 }
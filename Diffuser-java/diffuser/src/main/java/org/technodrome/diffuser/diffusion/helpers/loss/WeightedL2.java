@@ -1,9 +1,15 @@
 package org.technodrome.diffuser.diffusion.helpers.loss;
 
-public class WeightedL2 {
-    //class WeightedL2(WeightedLoss):
-//
-//        def _loss(self, pred, targ):
-//        return F.mse_loss(pred, targ, reduction='none')
-//
+import ai.djl.ndarray.NDArray;
+
+public class WeightedL2 extends WeightedLoss {
+
+    public WeightedL2(NDArray weights, int actionDim) {
+        super("WeightedL2", weights, actionDim);
+    }
+
+    @Override
+    protected NDArray elementLoss(NDArray pred, NDArray targ) {
+        return pred.sub(targ).square();
+    }
 }
@@ -1,24 +1,134 @@
 package org.technodrome.diffuser.diffusion.helpers.loss;
 
-public class WeightedLoss {
-
-//    class WeightedLoss(nn.Module):
-//
-//    def __init__(self, weights, action_dim):
-//            super().__init__()
-//        self.register_buffer('weights', weights)
-//    self.action_dim = action_dim
-//
-//    def forward(self, pred, targ):
-//            '''
-//    pred, targ : tensor
-//                [ batch_size x horizon x transition_dim ]
-//            '''
-//    loss = self._loss(pred, targ)
-//    weighted_loss = (loss * self.weights).mean()
-//    a0_loss = (loss[:, 0, :self.action_dim] / self.weights[0, :self.action_dim]).mean()
-//        return weighted_loss, {'a0_loss': a0_loss}
-//
+import ai.djl.metric.Metrics;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDArrays;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.index.NDIndex;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.training.loss.Loss;
+import org.jetbrains.annotations.Nullable;
 
+/**
+ * A per-element trajectory loss weighted by a (H, transitionDim) weight table, reduced to its mean.
+ * <p>
+ * The weighting and the reduction are one contraction of the flattened (B, H * transitionDim) element loss
+ * with the weights as a column, so no weighted (B, H, transitionDim) copy is materialized. Alongside the loss,
+ * {@link #evaluateWithInfo} reports a0Loss, the unweighted loss on the first action.
+ * <p>
+ * Both are also accumulated on the device by every {@link #evaluateWithInfo} call, and only copied to the host
+ * by {@link #publishDiagnostics}, as interval means.
+ */
+public abstract class WeightedLoss extends Loss implements AutoCloseable {
 
+    private final int actionDim;
+    private final long elements;        // H * transitionDim
+    private final NDArray weightColumn; // (H * transitionDim, 1)
+    private final NDArray a0Scale;      // (actionDim), 1 / weights[0, :actionDim]
+    private final LossDiagnostics diagnostics = new LossDiagnostics(2, 0, 0);
+
+    /**
+     * @param weights   (H, transitionDim)
+     * @param actionDim size of action slice in transitionDim
+     */
+    protected WeightedLoss(String name, NDArray weights, int actionDim) {
+        super(name);
+        this.actionDim = actionDim;
+        this.elements = weights.size();
+        this.weightColumn = weights.reshape(elements, 1);
+        this.a0Scale = weights.get(new NDIndex("0, :{}", actionDim)).pow(-1);
+    }
+
+    /**
+     * The loss named by the model's lossType, "l1" or "l2".
+     */
+    public static WeightedLoss forType(String lossType, NDArray weights, int actionDim) {
+        return switch (lossType) {
+            case "l1" -> new WeightedL1(weights, actionDim);
+            case "l2" -> new WeightedL2(weights, actionDim);
+            default -> throw new IllegalArgumentException("Unknown loss type " + lossType);
+        };
+    }
+
+    /**
+     * The unreduced loss.
+     *
+     * @param pred (B, H, transitionDim)
+     * @param targ (B, H, transitionDim)
+     * @return (B, H, transitionDim)
+     */
+    protected abstract NDArray elementLoss(NDArray pred, NDArray targ);
+
+    /**
+     * @param labels      the targets (B, H, transitionDim)
+     * @param predictions the predictions (B, H, transitionDim)
+     * @return the weighted mean loss
+     */
+    @Override
+    public NDArray evaluate(NDList labels, NDList predictions) {
+        NDArray loss = elementLoss(predictions.singletonOrThrow(), labels.singletonOrThrow());
+        return trajectoryLosses(loss).mean();
+    }
+
+    /**
+     * The weighted loss together with a0Loss.
+     */
+    public Result evaluateWithInfo(NDArray pred, NDArray targ) {
+        return evaluateWithInfo(pred, targ, null);
+    }
+
+    /**
+     * The weighted loss together with a0Loss, each trajectory's loss scaled by an importance weight before the
+     * mean, e.g. to correct for timesteps drawn non-uniformly.
+     *
+     * @param importance (B,) weights, or null for the plain mean
+     */
+    public Result evaluateWithInfo(NDArray pred, NDArray targ, @Nullable NDArray importance) {
+        NDArray loss = elementLoss(pred, targ);
+        NDArray a0Loss = loss.get(new NDIndex(":, 0, :{}", actionDim)).mul(a0Scale).mean();
+        NDArray trajectories = trajectoryLosses(loss);
+        NDArray weighted = importance == null ? trajectories.mean() : trajectories.mul(importance).mean();
+        diagnostics.record(NDArrays.stack(new NDList(weighted, a0Loss)), null, null, pred.getShape().get(0));
+        return new Result(weighted, a0Loss, trajectories);
+    }
+
+    /**
+     * Add the means of the loss and a0Loss since the last call to metrics, as "name" and "name_a0Loss".
+     * This is the only call that waits for the device.
+     */
+    public void publishDiagnostics(Metrics metrics) {
+        LossDiagnostics.Snapshot snapshot = diagnostics.snapshot();
+        if (snapshot == null) {
+            return;
+        }
+        metrics.addMetric(getName(), snapshot.sums()[0] / snapshot.steps());
+        metrics.addMetric(getName() + "_a0Loss", snapshot.sums()[1] / snapshot.steps());
+    }
+
+    @Override
+    public void close() {
+        diagnostics.close();
+    }
+
+    /**
+     * @return (B,) the weighted mean loss of each trajectory
+     */
+    private NDArray trajectoryLosses(NDArray loss) {
+        long batchSize = loss.getShape().get(0);
+        if (loss.size() != batchSize * elements) {
+            throw new IllegalArgumentException("Loss of shape " + loss.getShape() + " does not match weights of "
+                    + elements + " elements per trajectory");
+        }
+        // sum_hd loss * w as one (B, HD) x (HD, 1) product
+        return loss.reshape(new Shape(batchSize, elements)).matMul(weightColumn).reshape(batchSize).div(elements);
+    }
+
+    /**
+     * @param loss         the weighted mean loss
+     * @param a0Loss       the unweighted loss on the first action
+     * @param trajectories (B,) the weighted loss of each trajectory, before any importance weights
+     */
+    public record Result(NDArray loss, NDArray a0Loss, NDArray trajectories) {
+
+    }
 }
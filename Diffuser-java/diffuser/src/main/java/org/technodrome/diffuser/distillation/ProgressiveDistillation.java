@@ -0,0 +1,301 @@
+package org.technodrome.diffuser.distillation;
+
+import ai.djl.Model;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.training.DefaultTrainingConfig;
+import ai.djl.training.GradientCollector;
+import ai.djl.training.Trainer;
+import ai.djl.training.dataset.Batch;
+import ai.djl.training.loss.Loss;
+import ai.djl.training.optimizer.Optimizer;
+import ai.djl.training.tracker.Tracker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.technodrome.diffuser.Denoiser;
+import org.technodrome.diffuser.datasets.SequenceDataset;
+import org.technodrome.diffuser.diffusion.GaussianDiffusion;
+import org.technodrome.diffuser.diffusion.helpers.ConditioningPlan;
+import org.technodrome.diffuser.diffusion.helpers.NoiseSchedule;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Progressive distillation (Salimans and Ho, 2022): trains students that sample in half as many deterministic
+ * DDIM steps as their teacher, round after round.
+ * <p>
+ * Every round starts the student as a copy of the teacher. For a batch of trajectories it noises them to a
+ * timestep of the student's {@link GaussianDiffusion#strideSequence}, runs two teacher DDIM steps from there
+ * and regresses the student's clean-trajectory prediction onto the one that reaches the same point in a
+ * single step, weighted by max(SNR, 1). Each batch shares one timestep, so all schedule coefficients are host
+ * scalars. After each round the student is saved to the checkpoint directory, benchmarked, and becomes the
+ * next round's teacher. Every round is benchmarked on the same batch of conditions, taken before training.
+ */
+public final class ProgressiveDistillation {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProgressiveDistillation.class);
+    private static final int LOG_INTERVAL = 100;
+
+    private final GaussianDiffusion teacherDiffusion;
+    private final StudentFactory students;
+    private final int initialSteps;
+    private final int finalSteps;
+    private final int iterationsPerRound;
+    private final float learningRate;
+    private final int benchmarkPlans;
+    private final Path checkpointDir;
+    private final Random random;
+
+    /**
+     * @param teacherDiffusion   the trained model, sampled with initialSteps DDIM steps in the first round
+     * @param students           creates each round's trainable student from its teacher
+     * @param initialSteps       the teacher's step count, dividing the model's timesteps
+     * @param finalSteps         the step count of the last student; initialSteps / finalSteps must be a power of 2
+     * @param iterationsPerRound the number of optimizer steps per round
+     * @param learningRate       the Adam learning rate
+     * @param benchmarkPlans     the number of plans sampled to benchmark each student
+     * @param checkpointDir      where each round's student is saved
+     * @param seed               seeds the timesteps the students are trained at
+     */
+    public ProgressiveDistillation(GaussianDiffusion teacherDiffusion,
+                                   StudentFactory students,
+                                   int initialSteps,
+                                   int finalSteps,
+                                   int iterationsPerRound,
+                                   float learningRate,
+                                   int benchmarkPlans,
+                                   Path checkpointDir,
+                                   long seed) {
+        int ratio = finalSteps > 0 ? initialSteps / finalSteps : 0;
+        if (finalSteps < 1 || initialSteps % finalSteps != 0 || Integer.bitCount(ratio) != 1 || ratio < 2) {
+            throw new IllegalArgumentException("initialSteps / finalSteps must be a power of 2 of at least 2, got "
+                    + initialSteps + " / " + finalSteps);
+        }
+        if (teacherDiffusion.getTimesteps() % initialSteps != 0) {
+            throw new IllegalArgumentException("initialSteps " + initialSteps + " must divide the model's "
+                    + teacherDiffusion.getTimesteps() + " timesteps");
+        }
+        this.teacherDiffusion = teacherDiffusion;
+        this.students = students;
+        this.initialSteps = initialSteps;
+        this.finalSteps = finalSteps;
+        this.iterationsPerRound = iterationsPerRound;
+        this.learningRate = learningRate;
+        this.benchmarkPlans = benchmarkPlans;
+        this.checkpointDir = checkpointDir;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Run every round on batches of dataset.
+     *
+     * @return one result per round, in order; the students are closed
+     */
+    public List<RoundResult> run(SequenceDataset dataset, NDManager manager) throws IOException {
+        List<RoundResult> results = new ArrayList<>();
+        Iterator<Batch> batches = dataset.getData(manager).iterator();
+        GaussianDiffusion teacher = teacherDiffusion;
+        Student previous = null;
+        int round = 1;
+        try (Batch benchmarkBatch = batches.next()) {
+            for (int steps = initialSteps / 2; steps >= finalSteps; steps /= 2, round++) {
+                Student student = students.create(teacher, round);
+                GaussianDiffusion studentDiffusion = teacherDiffusion.withDenoiser(student.denoiser());
+                double loss;
+                try {
+                    if (!batches.hasNext()) {
+                        batches = dataset.getData(manager).iterator();
+                    }
+                    loss = trainRound(teacher, student, steps, dataset, manager, batches);
+                } catch (RuntimeException | IOException e) {
+                    studentDiffusion.close();
+                    student.close();
+                    throw e;
+                }
+
+                student.model().setProperty("SamplingSteps", Integer.toString(steps));
+                student.model().setProperty("Loss", String.format("%.5f", loss));
+                String name = "student-" + steps;
+                student.model().save(checkpointDir, name);
+
+                double millis = benchmark(studentDiffusion, steps, benchmarkBatch);
+                RoundResult result = new RoundResult(round, steps, loss, millis, checkpointDir.resolve(name));
+                logger.info("Distillation round {}: {} steps, loss {}, {} ms per plan", round, steps, loss, millis);
+                results.add(result);
+
+                // the student teaches the next round
+                if (teacher != teacherDiffusion) {
+                    teacher.close();
+                }
+                if (previous != null) {
+                    previous.close();
+                }
+                teacher = studentDiffusion;
+                previous = student;
+            }
+        } finally {
+            if (teacher != teacherDiffusion) {
+                teacher.close();
+            }
+            if (previous != null) {
+                previous.close();
+            }
+        }
+        return results;
+    }
+
+    private double trainRound(GaussianDiffusion teacher, Student student, int steps, SequenceDataset dataset,
+                              NDManager manager, Iterator<Batch> batches) throws IOException {
+        int timesteps = teacher.getTimesteps();
+        int[] teacherSequence = GaussianDiffusion.strideSequence(timesteps, steps * 2);
+        NoiseSchedule schedule = teacher.getNoiseSchedule();
+        DefaultTrainingConfig config = new DefaultTrainingConfig(Loss.l2Loss())
+                .optOptimizer(Optimizer.adam().optLearningRateTracker(Tracker.fixed(learningRate)).build());
+
+        try (Trainer trainer = student.model().newTrainer(config);
+             NDManager roundManager = manager.newSubManager()) {
+            // summed on the device, so the round's mean loss costs one transfer
+            NDArray lossSum = roundManager.zeros(new Shape());
+            for (int iteration = 0; iteration < iterationsPerRound; iteration++) {
+                if (!batches.hasNext()) {
+                    batches = dataset.getData(manager).iterator();
+                }
+                try (Batch batch = batches.next()) {
+                    NDArray x = batch.getData().get(0);
+                    Map<Integer, NDArray> cond = Map.of(0, batch.getData().get(1));
+
+                    // student step k goes from teacherSequence[2k] to teacherSequence[2k + 2]
+                    int k = random.nextInt(steps);
+                    int i = teacherSequence[2 * k];
+                    int mid = teacherSequence[2 * k + 1];
+                    int prev = 2 * k + 2 < teacherSequence.length ? teacherSequence[2 * k + 2] : -1;
+
+                    try (ConditioningPlan plan = ConditioningPlan.fromConditions(batch.getManager(), cond,
+                            x.getShape(), teacher.getActionDimension())) {
+                        NDArray noise = batch.getManager().randomNormal(x.getShape());
+                        NDArray z = plan.apply(x.mul(schedule.sqrtAlphasCumProd(i))
+                                .addi(noise.muli(schedule.sqrtOneMinusAlphasCumProd(i))));
+                        // the teacher runs before the student's collector opens, so it records nothing
+                        NDArray target = twoStepTarget(teacher, schedule, z, cond, plan, i, mid, prev).stopGradient();
+
+                        try (GradientCollector collector = trainer.newGradientCollector()) {
+                            NDArray t = batch.getManager().full(new Shape(x.getShape().get(0)), i, DataType.INT64);
+                            NDArray output = student.denoiser().forward(z, cond, t, true);
+                            NDArray predicted = teacher.isPredictEpsilon()
+                                    ? z.mul(schedule.inverseSqrtAlphasCumprod(i)).add(output.mul(-schedule.inverseSqrtOneMinusAlphasCumprod(i)))
+                                    : output;
+                            double snr = schedule.alphasCumProd(i) / (1.0 - schedule.alphasCumProd(i));
+                            NDArray loss = plan.blend(predicted).sub(target).square().mean().mul(Math.max(snr, 1.0));
+                            collector.backward(loss);
+                            lossSum.addi(loss.stopGradient());
+                            if (iteration % LOG_INTERVAL == 0) {
+                                logger.debug("Distilling to {} steps, iteration {}: loss {}", steps, iteration,
+                                        loss.getFloat());
+                            }
+                        }
+                    }
+                    trainer.step();
+                }
+            }
+            return lossSum.getFloat() / Math.max(iterationsPerRound, 1);
+        }
+    }
+
+    /**
+     * The clean trajectory from which one DDIM step i -> prev lands where two teacher steps i -> mid -> prev do.
+     */
+    private static NDArray twoStepTarget(GaussianDiffusion teacher, NoiseSchedule schedule, NDArray z,
+                                         Map<Integer, NDArray> cond, ConditioningPlan plan, int i, int mid, int prev) {
+        NDArray t = z.getManager().full(new Shape(z.getShape().get(0)), i, DataType.INT64);
+        NDArray zMid = plan.apply(ddimStep(schedule, z, teacher.predictStart(z, cond, t, i), i, mid));
+        NDArray tMid = z.getManager().full(new Shape(z.getShape().get(0)), mid, DataType.INT64);
+        NDArray zPrev = plan.apply(ddimStep(schedule, zMid, teacher.predictStart(zMid, cond, tMid, mid), mid, prev));
+        if (prev < 0) {
+            return zPrev;
+        }
+
+        // invert z_prev = alphaPrev * target + sigmaPrev * (z - alpha * target) / sigma
+        double alpha = schedule.sqrtAlphasCumProd(i);
+        double sigma = schedule.sqrtOneMinusAlphasCumProd(i);
+        double alphaPrev = schedule.sqrtAlphasCumProd(prev);
+        double sigmaPrev = schedule.sqrtOneMinusAlphasCumProd(prev);
+        double ratio = sigmaPrev / sigma;
+        return zPrev.sub(z.mul(ratio)).divi(alphaPrev - ratio * alpha);
+    }
+
+    /**
+     * The deterministic DDIM step from i to prev, prev = -1 being the clean trajectory.
+     */
+    private static NDArray ddimStep(NoiseSchedule schedule, NDArray z, NDArray x0, int i, int prev) {
+        if (prev < 0) {
+            return x0;
+        }
+        double ratio = schedule.sqrtOneMinusAlphasCumProd(prev) / schedule.sqrtOneMinusAlphasCumProd(i);
+        return z.mul(ratio).addi(x0.mul(schedule.sqrtAlphasCumProd(prev) - ratio * schedule.sqrtAlphasCumProd(i)));
+    }
+
+    /**
+     * @return the mean wall-clock milliseconds of sampling one batch of plans with the student
+     */
+    private double benchmark(GaussianDiffusion studentDiffusion, int steps, Batch batch) {
+        int[] sequence = GaussianDiffusion.strideSequence(studentDiffusion.getTimesteps(), steps);
+        Map<Integer, NDArray> cond = Map.of(0, batch.getData().get(1));
+        Shape shape = batch.getData().get(0).getShape();
+        long elapsed = 0;
+        for (int p = 0; p <= benchmarkPlans; p++) {
+            long start = System.nanoTime();
+            GaussianDiffusion.Sample sample = studentDiffusion.ddimSampleLoop(shape, cond, sequence, 0.0, false);
+            sample.trajectories().toFloatArray();
+            // the first plan warms up
+            if (p > 0) {
+                elapsed += System.nanoTime() - start;
+            }
+            sample.trajectories().close();
+            sample.values().close();
+        }
+        return elapsed / 1e6 / Math.max(benchmarkPlans, 1);
+    }
+
+    /**
+     * Creates the trainable student of a round.
+     */
+    @FunctionalInterface
+    public interface StudentFactory {
+        /**
+         * @param teacher the round's teacher, whose denoiser the student usually copies
+         * @param round   the round, from 1
+         * @return a student whose model's block holds every parameter of its denoiser, initialized
+         */
+        Student create(GaussianDiffusion teacher, int round) throws IOException;
+    }
+
+    /**
+     * A trainable denoiser and the model that owns its parameters.
+     */
+    public record Student(Model model, Denoiser denoiser) implements AutoCloseable {
+
+        @Override
+        public void close() {
+            model.close();
+        }
+    }
+
+    /**
+     * @param round          the round, from 1
+     * @param steps          the student's sampling steps
+     * @param loss           the mean distillation loss over the round's iterations
+     * @param millisPerPlan  the mean time to sample one batch of plans
+     * @param checkpoint     the saved student
+     */
+    public record RoundResult(int round, int steps, double loss, double millisPerPlan, Path checkpoint) {
+
+    }
+}
@@ -0,0 +1,261 @@
+package org.technodrome.diffuser.sampling;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDArrays;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.technodrome.diffuser.diffusion.GaussianDiffusion;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces concurrent conditional sampling requests into one batched sampling loop.
+ * <p>
+ * Requests are queued and picked up by a single worker thread. It waits up to maxWait after the first request
+ * for more requests with the same horizon and conditioned timesteps, up to maxBatchSize rows in total, then runs
+ * one {@link GaussianDiffusion#conditionalSample} over the concatenated conditions and hands each caller its
+ * rows of the result. Requests that cannot join the current batch are kept for the next one.
+ * <p>
+ * Each returned sample is attached to the manager of its request's conditions and owned by the caller.
+ */
+public final class BatchingSampler implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchingSampler.class);
+
+    private final GaussianDiffusion diffusion;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+    private final int samplingSteps;
+    private final double eta;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Deque<Request> deferred = new ArrayDeque<>();
+    private final Thread worker;
+    private final Object lock = new Object();   // orders submits against close, so none is queued after the drain
+    private volatile boolean closed;
+
+    /**
+     * @param diffusion     the model to sample from
+     * @param maxBatchSize  the maximum number of rows sampled together
+     * @param maxWait       how long the first request of a batch waits for others
+     * @param samplingSteps the number of denoiser calls per sample, see
+     *                      {@link GaussianDiffusion#conditionalSample(Map, Integer, int, double)}
+     * @param eta           the DDIM noise scale, used when samplingSteps is less than the model's timesteps
+     */
+    public BatchingSampler(GaussianDiffusion diffusion, int maxBatchSize, Duration maxWait, int samplingSteps, double eta) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be positive, got " + maxBatchSize);
+        }
+        this.diffusion = diffusion;
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = maxWait.toNanos();
+        this.samplingSteps = samplingSteps;
+        this.eta = eta;
+        this.worker = new Thread(this::run, "diffusion-batching-sampler");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    public CompletableFuture<GaussianDiffusion.Sample> submit(Map<Integer, NDArray> cond) {
+        return submit(cond, null);
+    }
+
+    /**
+     * Queue a request.
+     *
+     * @param cond    map timestep -> observation (B, observationDim), with the same B for every entry
+     * @param horizon the planning horizon, or null to use the model's horizon
+     * @return the sample of the request's B rows
+     */
+    public CompletableFuture<GaussianDiffusion.Sample> submit(Map<Integer, NDArray> cond, @Nullable Integer horizon) {
+        if (cond == null || cond.isEmpty()) {
+            throw new IllegalArgumentException("cond must contain at least one conditioned timestep");
+        }
+        // resolved here, so requests leaving the horizon to the model batch with those giving it explicitly
+        int resolved = horizon != null ? horizon : diffusion.getHorizon();
+        Request request = new Request(cond, resolved, new CompletableFuture<>());
+        synchronized (lock) {
+            if (closed) {
+                request.result.completeExceptionally(new CancellationException("sampler is closed"));
+                return request.result;
+            }
+            queue.add(request);
+        }
+        return request.result;
+    }
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+        }
+        worker.interrupt();
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            // the worker drains the requests itself on its way out
+            Thread.currentThread().interrupt();
+            return;
+        }
+        cancelPending();
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                List<Request> batch;
+                try {
+                    batch = nextBatch();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                sample(batch);
+            }
+        } finally {
+            // also reached when an Error kills the worker, so no future is left waiting for it
+            synchronized (lock) {
+                closed = true;
+            }
+            cancelPending();
+        }
+    }
+
+    /**
+     * Cancel every request still queued or deferred. Runs on the worker as it exits, or after it has exited.
+     */
+    private void cancelPending() {
+        CancellationException cancelled = new CancellationException("sampler is closed");
+        deferred.forEach(request -> request.result.completeExceptionally(cancelled));
+        deferred.clear();
+        Request request;
+        while ((request = queue.poll()) != null) {
+            request.result.completeExceptionally(cancelled);
+        }
+    }
+
+    /**
+     * Block for the first request, then gather compatible requests until the batch is full or maxWait elapses.
+     */
+    private List<Request> nextBatch() throws InterruptedException {
+        Request first = deferred.isEmpty() ? queue.take() : deferred.poll();
+        List<Request> batch = new ArrayList<>();
+        batch.add(first);
+        long rows = first.rows();
+
+        // deferred requests are already waiting, so they join without delay
+        Iterator<Request> waiting = deferred.iterator();
+        while (waiting.hasNext() && rows < maxBatchSize) {
+            Request request = waiting.next();
+            if (request.compatibleWith(first) && rows + request.rows() <= maxBatchSize) {
+                waiting.remove();
+                batch.add(request);
+                rows += request.rows();
+            }
+        }
+
+        long deadline = System.nanoTime() + maxWaitNanos;
+        while (rows < maxBatchSize) {
+            long remaining = deadline - System.nanoTime();
+            Request request;
+            try {
+                request = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+            } catch (InterruptedException e) {
+                // hand the gathered requests to the drain rather than dropping them
+                deferred.addAll(batch);
+                throw e;
+            }
+            if (request == null) {
+                break;
+            }
+            if (request.compatibleWith(first) && rows + request.rows() <= maxBatchSize) {
+                batch.add(request);
+                rows += request.rows();
+            } else {
+                deferred.add(request);
+            }
+        }
+        return batch;
+    }
+
+    private void sample(List<Request> batch) {
+        Request first = batch.get(0);
+        if (batch.size() == 1) {
+            try {
+                first.result.complete(diffusion.conditionalSample(first.cond, first.horizon, samplingSteps, eta));
+            } catch (RuntimeException | Error e) {
+                first.result.completeExceptionally(e);
+                if (e instanceof Error error) {
+                    throw error;
+                }
+            }
+            return;
+        }
+
+        Map<Integer, NDArray> cond = new HashMap<>();
+        try {
+            for (Integer key : first.cond.keySet()) {
+                NDList values = new NDList(batch.size());
+                for (Request request : batch) {
+                    values.add(request.cond.get(key));
+                }
+                cond.put(key, NDArrays.concat(values, 0));
+            }
+
+            GaussianDiffusion.Sample sample = diffusion.conditionalSample(cond, first.horizon, samplingSteps, eta);
+
+            // split at the cumulative row counts of all but the last request
+            long[] indices = new long[batch.size() - 1];
+            long offset = 0;
+            for (int i = 0; i < indices.length; i++) {
+                offset += batch.get(i).rows();
+                indices[i] = offset;
+            }
+            NDList trajectories = sample.trajectories().split(indices, 0);
+            NDList values = sample.values().split(indices, 0);
+            sample.trajectories().close();
+            sample.values().close();
+            for (int i = 0; i < batch.size(); i++) {
+                Request request = batch.get(i);
+                NDManager output = request.cond.values().iterator().next().getManager();
+                trajectories.get(i).attach(output);
+                values.get(i).attach(output);
+                request.result.complete(new GaussianDiffusion.Sample(trajectories.get(i), values.get(i), null));
+            }
+        } catch (RuntimeException | Error e) {
+            logger.warn("Batched sampling of {} requests failed", batch.size(), e);
+            batch.forEach(request -> request.result.completeExceptionally(e));
+            if (e instanceof Error error) {
+                throw error;
+            }
+        } finally {
+            cond.values().forEach(NDArray::close);
+        }
+    }
+
+    private record Request(Map<Integer, NDArray> cond,
+                           int horizon,
+                           CompletableFuture<GaussianDiffusion.Sample> result) {
+
+        long rows() {
+            return cond.values().iterator().next().getShape().get(0);
+        }
+
+        boolean compatibleWith(Request other) {
+            return horizon == other.horizon && cond.keySet().equals(other.cond.keySet());
+        }
+    }
+}
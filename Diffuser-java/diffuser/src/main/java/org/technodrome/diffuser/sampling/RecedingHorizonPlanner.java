@@ -0,0 +1,96 @@
+package org.technodrome.diffuser.sampling;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDArrays;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.index.NDIndex;
+import org.technodrome.diffuser.diffusion.GaussianDiffusion;
+
+import java.util.Map;
+
+/**
+ * Model-predictive planning that warm-starts every plan from the previous one.
+ * <p>
+ * The first call samples from pure noise. Every later call shifts the previous plan one step forward in time
+ * (repeating its last transition), re-noises it to startTimestep and only runs the reverse process from
+ * there, see {@link GaussianDiffusion#warmStartSample}.
+ * <p>
+ * Each returned sample is attached to the manager of its conditions and owned by the caller, like
+ * {@link GaussianDiffusion#conditionalSample}. The planner keeps a copy of its trajectories on a manager of its own
+ * as the warm start of the next call, so the caller may close the conditions' manager between calls. Not
+ * thread-safe: one planner per control loop.
+ */
+public final class RecedingHorizonPlanner implements AutoCloseable {
+
+    private final GaussianDiffusion diffusion;
+    private final int startTimestep;
+    private final int coldSamplingSteps;
+    private final int warmSamplingSteps;
+    private final double eta;
+    private final NDManager manager;
+    private NDArray previous;
+
+    /**
+     * @param diffusion         the model to sample from
+     * @param startTimestep     the timestep the shifted plan is re-noised to
+     * @param coldSamplingSteps the number of denoiser calls of the first plan
+     * @param warmSamplingSteps the number of denoiser calls of every warm-started plan
+     * @param eta               the DDIM noise scale, used when a step count is less than the timesteps it covers
+     */
+    public RecedingHorizonPlanner(GaussianDiffusion diffusion,
+                                  int startTimestep,
+                                  int coldSamplingSteps,
+                                  int warmSamplingSteps,
+                                  double eta) {
+        this.diffusion = diffusion;
+        this.startTimestep = startTimestep;
+        this.coldSamplingSteps = coldSamplingSteps;
+        this.warmSamplingSteps = warmSamplingSteps;
+        this.eta = eta;
+        this.manager = NDManager.newBaseManager(diffusion.getDevice());
+    }
+
+    /**
+     * Plan from the current conditions.
+     *
+     * @param cond map timestep -> observation (B, observationDim), usually just the current state at 0
+     * @return the new plans
+     */
+    public GaussianDiffusion.Sample plan(Map<Integer, NDArray> cond) {
+        long batchSize = cond.values().iterator().next().getShape().get(0);
+        GaussianDiffusion.Sample sample;
+        if (previous == null || previous.getShape().get(0) != batchSize) {
+            reset();
+            sample = diffusion.conditionalSample(cond, null, coldSamplingSteps, eta);
+        } else {
+            // x[:, h] = previous[:, h + 1], with the last transition repeated
+            NDList parts = new NDList(previous.get(new NDIndex(":, 1:")), previous.get(new NDIndex(":, -1:")));
+            NDArray shifted = NDArrays.concat(parts, 1);
+            parts.close();
+            reset();
+            // warmStartSample denoises in place, so this puts the plan on the conditions' manager
+            shifted.attach(cond.values().iterator().next().getManager());
+            sample = diffusion.warmStartSample(shifted, cond, startTimestep, warmSamplingSteps, eta);
+        }
+        previous = sample.trajectories().duplicate();
+        previous.attach(manager);
+        return sample;
+    }
+
+    /**
+     * Forget the previous plan, so that the next call samples from pure noise.
+     */
+    public void reset() {
+        if (previous != null) {
+            previous.close();
+            previous = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        reset();
+        manager.close();
+    }
+}
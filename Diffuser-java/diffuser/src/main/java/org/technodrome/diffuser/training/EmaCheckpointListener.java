@@ -0,0 +1,373 @@
+package org.technodrome.diffuser.training;
+
+import ai.djl.MalformedModelException;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.nn.Block;
+import ai.djl.nn.Parameter;
+import ai.djl.nn.ParameterList;
+import ai.djl.training.Trainer;
+import ai.djl.training.listener.TrainingListenerAdapter;
+import ai.djl.util.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps an exponential moving average of a model's parameters during training and writes it to disk from a
+ * background thread, like the EMA model of the Python Diffuser trainer.
+ * <p>
+ * The average lives on the parameters' device and is updated every {@link Builder#optUpdateEvery} batches with
+ * three in-place operations per parameter, ema = decay * ema + (1 - decay) * param, so updates allocate
+ * nothing; before {@link Builder#optStartStep} it just tracks the parameters. Every {@link Builder#optSaveEvery}
+ * batches the average is copied into one of a few preallocated host snapshots, which a writer thread
+ * serializes to {@code <name>-<step>.ema} through a temporary file. The training thread only waits for the
+ * device-to-host copy; if every snapshot is still queued for writing, the checkpoint is skipped rather than
+ * stalling training. {@link #restore} loads a checkpoint into a block.
+ * <p>
+ * The end of training writes a last checkpoint and waits for the writer, but keeps the average: later fits with
+ * the same trainer continue it, and {@link #save()} may still be called until {@link #close()} frees it.
+ */
+public final class EmaCheckpointListener extends TrainingListenerAdapter implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(EmaCheckpointListener.class);
+
+    public static final String SUFFIX = ".ema";
+    private static final int MAGIC = 0x454d4157; // "EMAW"
+    private static final int VERSION = 1;
+
+    private final Path directory;
+    private final String name;
+    private final float decay;
+    private final int updateEvery;
+    private final int startStep;
+    private final int saveEvery;
+    private final BlockingQueue<Snapshot> free;
+    private final int snapshots;
+
+    private ExecutorService writer;     // started on demand, stopped at the end of every fit
+    private boolean closed;
+    private NDManager manager;
+    private List<Parameter> parameters;
+    private NDArray[] averages;
+    private Header[] headers;       // read by the writer thread, which never touches the device
+    private long step;
+
+    private EmaCheckpointListener(Builder builder) {
+        this.directory = builder.directory;
+        this.name = builder.name;
+        this.decay = builder.decay;
+        this.updateEvery = builder.updateEvery;
+        this.startStep = builder.startStep;
+        this.saveEvery = builder.saveEvery;
+        this.snapshots = builder.snapshots;
+        this.free = new ArrayBlockingQueue<>(builder.snapshots);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public void onTrainingBegin(Trainer trainer) {
+        if (closed) {
+            throw new IllegalStateException("EMA listener is closed");
+        }
+        if (averages != null) {
+            // a later fit continues the average
+            return;
+        }
+        List<Parameter> list = new ArrayList<>();
+        for (Pair<String, Parameter> pair : trainer.getModel().getBlock().getParameters()) {
+            list.add(pair.getValue());
+        }
+        parameters = list;
+        manager = trainer.getManager().newSubManager();
+        averages = new NDArray[list.size()];
+        headers = new Header[list.size()];
+        long[] sizes = new long[list.size()];
+        for (int p = 0; p < averages.length; p++) {
+            NDArray array = list.get(p).getArray();
+            averages[p] = array.duplicate();
+            averages[p].attach(manager);
+            headers[p] = new Header(list.get(p).getName(), array.getDataType(), array.getShape().getShape());
+            sizes[p] = array.size() * array.getDataType().getNumOfBytes();
+        }
+        for (int s = 0; s < snapshots; s++) {
+            free.add(new Snapshot(sizes));
+        }
+    }
+
+    @Override
+    public void onTrainingBatch(Trainer trainer, BatchData batchData) {
+        step++;
+        if (step % updateEvery == 0) {
+            for (int p = 0; p < averages.length; p++) {
+                NDArray param = parameters.get(p).getArray();
+                if (step < startStep) {
+                    averages[p].muli(0).addi(param);
+                } else {
+                    // decay * (ema - param) + param
+                    averages[p].subi(param).muli(decay).addi(param);
+                }
+            }
+        }
+        if (step % saveEvery == 0) {
+            save();
+        }
+    }
+
+    @Override
+    public void onTrainingEnd(Trainer trainer) {
+        if (step % saveEvery != 0) {
+            save();
+        }
+        stopWriter();
+    }
+
+    /**
+     * Copy the average into a free host snapshot and queue it for writing.
+     *
+     * @return false if no snapshot was free and the checkpoint was skipped
+     * @throws IllegalStateException before training began or after {@link #close()}
+     */
+    public boolean save() {
+        if (closed || averages == null) {
+            throw new IllegalStateException(closed ? "EMA listener is closed" : "EMA training has not begun");
+        }
+        Snapshot snapshot = free.poll();
+        if (snapshot == null) {
+            logger.warn("Skipping EMA checkpoint at step {}: every snapshot is still being written", step);
+            return false;
+        }
+        try {
+            for (int p = 0; p < averages.length; p++) {
+                snapshot.data[p].clear();
+                // a view of host memory where the engine allows it, so the only copy is into the snapshot
+                snapshot.data[p].put(averages[p].toByteBuffer(true));
+                snapshot.data[p].flip();
+            }
+            snapshot.step = step;
+            if (writer == null) {
+                writer = Executors.newSingleThreadExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "ema-checkpoint-writer");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            writer.execute(() -> write(snapshot));
+        } catch (RuntimeException e) {
+            free.add(snapshot);
+            throw e;
+        }
+        return true;
+    }
+
+    private void write(Snapshot snapshot) {
+        Path target = directory.resolve(name + "-" + snapshot.step + SUFFIX);
+        Path temporary = directory.resolve(target.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(directory);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeBoolean(ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN);
+                out.writeLong(snapshot.step);
+                out.writeInt(headers.length);
+                for (int p = 0; p < headers.length; p++) {
+                    out.writeUTF(headers[p].name());
+                    out.writeUTF(headers[p].dataType().name());
+                    out.writeInt(headers[p].shape().length);
+                    for (long dim : headers[p].shape()) {
+                        out.writeLong(dim);
+                    }
+                    out.write(snapshot.data[p].array(), 0, snapshot.data[p].limit());
+                }
+            }
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.debug("Wrote EMA checkpoint {}", target);
+        } catch (IOException e) {
+            logger.warn("Could not write EMA checkpoint {}", target, e);
+        } finally {
+            free.add(snapshot);
+        }
+    }
+
+    /**
+     * Load an EMA checkpoint into the parameters of an initialized block, in order.
+     *
+     * @return the training step the checkpoint was taken at
+     */
+    public static long restore(Path checkpoint, Block block) throws IOException, MalformedModelException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(checkpoint))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new MalformedModelException("Not an EMA checkpoint: " + checkpoint);
+            }
+            ByteOrder order = in.readBoolean() ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+            if (order != ByteOrder.nativeOrder()) {
+                throw new MalformedModelException("EMA checkpoint " + checkpoint + " was written in " + order);
+            }
+            long step = in.readLong();
+            int count = in.readInt();
+            ParameterList parameters = block.getParameters();
+            if (count != parameters.size()) {
+                throw new MalformedModelException("EMA checkpoint has " + count + " parameters, block has "
+                        + parameters.size());
+            }
+            for (Pair<String, Parameter> pair : parameters) {
+                String parameterName = in.readUTF();
+                DataType dataType = DataType.valueOf(in.readUTF());
+                long[] shape = new long[in.readInt()];
+                for (int d = 0; d < shape.length; d++) {
+                    shape[d] = in.readLong();
+                }
+                NDArray array = pair.getValue().getArray();
+                if (!parameterName.equals(pair.getValue().getName()) || dataType != array.getDataType()
+                        || !array.getShape().equals(new Shape(shape))) {
+                    throw new MalformedModelException("EMA parameter " + parameterName + " does not match "
+                            + pair.getKey() + " " + array.getDataType() + array.getShape());
+                }
+                byte[] data = new byte[Math.toIntExact(array.size() * dataType.getNumOfBytes())];
+                in.readFully(data);
+                array.set(ByteBuffer.wrap(data).order(order));
+            }
+            return step;
+        }
+    }
+
+    /**
+     * Write the queued snapshots and stop the writer thread; the next {@link #save()} starts a new one.
+     */
+    private void stopWriter() {
+        if (writer == null) {
+            return;
+        }
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.warn("EMA checkpoints still being written after a minute");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer = null;
+    }
+
+    /**
+     * Write the queued snapshots and free the average.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        stopWriter();
+        if (manager != null) {
+            manager.close();
+            manager = null;
+        }
+    }
+
+    private record Header(String name, DataType dataType, long[] shape) {
+
+    }
+
+    private static final class Snapshot {
+        private final ByteBuffer[] data;
+        private long step;
+
+        private Snapshot(long[] sizes) {
+            this.data = new ByteBuffer[sizes.length];
+            for (int p = 0; p < sizes.length; p++) {
+                data[p] = ByteBuffer.allocate(Math.toIntExact(sizes[p])).order(ByteOrder.nativeOrder());
+            }
+        }
+    }
+
+    public static final class Builder {
+        private Path directory;
+        private String name = "ema";
+        private float decay = 0.995f;
+        private int updateEvery = 10;
+        private int startStep = 2000;
+        private int saveEvery = 1000;
+        private int snapshots = 2;
+
+        public Builder setDirectory(Path directory) {
+            this.directory = directory;
+            return this;
+        }
+
+        /**
+         * The checkpoint file prefix, "ema" by default.
+         */
+        public Builder optName(String name) {
+            this.name = name;
+            return this;
+        }
+
+        public Builder optDecay(float decay) {
+            this.decay = decay;
+            return this;
+        }
+
+        /**
+         * Update the average every updateEvery batches.
+         */
+        public Builder optUpdateEvery(int updateEvery) {
+            this.updateEvery = updateEvery;
+            return this;
+        }
+
+        /**
+         * Copy the parameters instead of averaging them before step startStep.
+         */
+        public Builder optStartStep(int startStep) {
+            this.startStep = startStep;
+            return this;
+        }
+
+        public Builder optSaveEvery(int saveEvery) {
+            this.saveEvery = saveEvery;
+            return this;
+        }
+
+        /**
+         * The number of host snapshots that may wait for the writer before checkpoints are skipped.
+         */
+        public Builder optSnapshots(int snapshots) {
+            this.snapshots = snapshots;
+            return this;
+        }
+
+        public EmaCheckpointListener build() {
+            if (directory == null) {
+                throw new IllegalArgumentException("directory is required");
+            }
+            if (decay < 0 || decay >= 1) {
+                throw new IllegalArgumentException("decay must be in [0, 1), got " + decay);
+            }
+            if (updateEvery < 1 || saveEvery < 1 || snapshots < 1) {
+                throw new IllegalArgumentException("updateEvery, saveEvery and snapshots must be positive, got "
+                        + updateEvery + ", " + saveEvery + " and " + snapshots);
+            }
+            return new EmaCheckpointListener(this);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package org.technodrome.diffuser;
+
+import ai.djl.Model;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.nn.Block;
+import ai.djl.nn.core.Linear;
+import ai.djl.training.ParameterStore;
+
+/**
+ * A trainable denoiser for tests: one linear layer over the transition dimension, ignoring the timestep.
+ */
+public class LinearDenoiser implements Denoiser {
+
+    private final Block block;
+    private final ParameterStore ps;
+
+    /**
+     * Creates the layer as the block of model and initializes it.
+     */
+    public LinearDenoiser(Model model, int transitionDim) {
+        this.block = Linear.builder().setUnits(transitionDim).build();
+        model.setBlock(block);
+        block.initialize(model.getNDManager(), DataType.FLOAT32, new Shape(1, transitionDim));
+        this.ps = new ParameterStore(model.getNDManager(), false);
+    }
+
+    @Override
+    public NDArray forward(NDArray x, Object cond, NDArray t, boolean isTraining) {
+        return block.forward(ps, new NDList(x), isTraining).singletonOrThrow();
+    }
+
+    public Block getBlock() {
+        return block;
+    }
+}
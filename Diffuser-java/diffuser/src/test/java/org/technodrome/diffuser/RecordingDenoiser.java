@@ -0,0 +1,50 @@
+package org.technodrome.diffuser;
+
+import ai.djl.Device;
+import ai.djl.ndarray.NDArray;
+import org.technodrome.diffuser.diffusion.GaussianDiffusion;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A parameter-free denoiser for tests: predicts x scaled by a constant, and records the rows of every call.
+ */
+public class RecordingDenoiser implements Denoiser {
+
+    public static final int OBSERVATION_DIM = 3;
+    public static final int ACTION_DIM = 2;
+
+    private final float scale;
+    private final List<Long> rows = new CopyOnWriteArrayList<>();
+
+    public RecordingDenoiser(float scale) {
+        this.scale = scale;
+    }
+
+    public RecordingDenoiser() {
+        this(0.5f);
+    }
+
+    @Override
+    public NDArray forward(NDArray x, Object cond, NDArray t, boolean isTraining) {
+        rows.add(x.getShape().get(0));
+        return x.mul(scale);
+    }
+
+    /**
+     * The batch rows of every forward call so far, in order.
+     */
+    public List<Long> getRows() {
+        return rows;
+    }
+
+    /**
+     * A CPU model over (action, observation) transitions of {@link #ACTION_DIM} + {@link #OBSERVATION_DIM},
+     * predicting the clean trajectory with an l2 loss.
+     */
+    public static GaussianDiffusion diffusion(Denoiser denoiser, int horizon, int timesteps) {
+        return new GaussianDiffusion(denoiser, horizon, OBSERVATION_DIM, ACTION_DIM, timesteps, "l2", true, false,
+                1.0, 1.0, null, Device.cpu());
+    }
+}
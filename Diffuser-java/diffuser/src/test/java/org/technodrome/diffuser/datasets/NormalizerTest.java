@@ -0,0 +1,109 @@
+package org.technodrome.diffuser.datasets;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class NormalizerTest {
+
+    private static final int DIM = 3;
+    private static final int ACTION_DIM = 1;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void mergedChunksMatchASinglePass() throws IOException {
+        float[][] episodes = episodes(new Random(7), 17, 5, 30);
+        try (SequenceDataset dataset = prepare(episodes)) {
+            Normalizer single = Normalizer.compute(dataset, Normalizer.Mode.GAUSSIAN, 1);
+            Normalizer chunked = Normalizer.compute(dataset, Normalizer.Mode.GAUSSIAN, 6);
+
+            // two-pass population statistics over every transition
+            double[] mean = new double[DIM];
+            double[] variance = new double[DIM];
+            double[] min = new double[DIM];
+            double[] max = new double[DIM];
+            Arrays.fill(min, Double.POSITIVE_INFINITY);
+            Arrays.fill(max, Double.NEGATIVE_INFINITY);
+            int rows = 0;
+            for (float[] episode : episodes) {
+                for (int i = 0; i < episode.length; i++) {
+                    mean[i % DIM] += episode[i];
+                    min[i % DIM] = Math.min(min[i % DIM], episode[i]);
+                    max[i % DIM] = Math.max(max[i % DIM], episode[i]);
+                }
+                rows += episode.length / DIM;
+            }
+            for (int d = 0; d < DIM; d++) {
+                mean[d] /= rows;
+            }
+            for (float[] episode : episodes) {
+                for (int i = 0; i < episode.length; i++) {
+                    double delta = episode[i] - mean[i % DIM];
+                    variance[i % DIM] += delta * delta;
+                }
+            }
+            double[] std = new double[DIM];
+            for (int d = 0; d < DIM; d++) {
+                std[d] = Math.sqrt(variance[d] / rows);
+            }
+
+            for (Normalizer normalizer : new Normalizer[]{single, chunked}) {
+                assertArrayEquals(mean, normalizer.getMean(), 1e-9);
+                assertArrayEquals(std, normalizer.getStd(), 1e-9);
+                assertArrayEquals(min, normalizer.getMin(), 0.0);
+                assertArrayEquals(max, normalizer.getMax(), 0.0);
+            }
+        }
+    }
+
+    @Test
+    void truncatedCacheIsAMiss() throws IOException {
+        float[][] episodes = episodes(new Random(11), 8, 8);
+        try (SequenceDataset dataset = prepare(episodes)) {
+            Path cache = directory.resolve("cache" + Normalizer.CACHE_SUFFIX);
+            Normalizer computed = Normalizer.compute(dataset, Normalizer.Mode.GAUSSIAN, 2);
+            computed.save(cache, dataset.getPath());
+            assertNotNull(Normalizer.load(cache, dataset.getPath(), Normalizer.Mode.GAUSSIAN, ACTION_DIM));
+
+            byte[] bytes = Files.readAllBytes(cache);
+            Files.write(cache, Arrays.copyOf(bytes, bytes.length / 2));
+            assertNull(Normalizer.load(cache, dataset.getPath(), Normalizer.Mode.GAUSSIAN, ACTION_DIM));
+        }
+    }
+
+    private SequenceDataset prepare(float[][] episodes) throws IOException {
+        Path path = directory.resolve("episodes.bin");
+        SequenceDataset.write(path, DIM, episodes);
+        SequenceDataset dataset = SequenceDataset.builder()
+                .setPath(path)
+                .setHorizon(2)
+                .setActionDim(ACTION_DIM)
+                .setSampling(4, false)
+                .build();
+        dataset.prepare(null);
+        return dataset;
+    }
+
+    private static float[][] episodes(Random random, int... lengths) {
+        float[][] episodes = new float[lengths.length][];
+        for (int e = 0; e < lengths.length; e++) {
+            episodes[e] = new float[lengths[e] * DIM];
+            for (int i = 0; i < episodes[e].length; i++) {
+                // offset per dimension, so the means differ from zero and each other
+                episodes[e][i] = (float) (random.nextGaussian() * (1 + i % DIM) + 10 * (i % DIM));
+            }
+        }
+        return episodes;
+    }
+}
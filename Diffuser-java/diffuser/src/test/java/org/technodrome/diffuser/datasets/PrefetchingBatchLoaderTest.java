@@ -0,0 +1,119 @@
+package org.technodrome.diffuser.datasets;
+
+import ai.djl.ndarray.NDManager;
+import ai.djl.training.dataset.Batch;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PrefetchingBatchLoaderTest {
+
+    private static final int DIM = 2;
+    private static final int EPISODE_ROWS = 21;
+    private static final int HORIZON = 2;
+    private static final int WINDOWS = EPISODE_ROWS - HORIZON + 1;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void everyWindowIsDeliveredOncePerEpoch() throws IOException {
+        try (SequenceDataset dataset = prepare(true);
+             PrefetchingBatchLoader loader = new PrefetchingBatchLoader(dataset, 3, 2);
+             NDManager manager = NDManager.newBaseManager()) {
+            for (int epoch = 0; epoch < 2; epoch++) {
+                assertEquals(allWindows(), firstRows(loader.epoch(manager)));
+            }
+            assertEquals(0, manager.getManagedArrays().size());
+        }
+    }
+
+    @Test
+    void aNewEpochAbandonsThePreviousOne() throws IOException {
+        try (SequenceDataset dataset = prepare(false);
+             PrefetchingBatchLoader loader = new PrefetchingBatchLoader(dataset, 2, 1);
+             NDManager manager = NDManager.newBaseManager()) {
+            Iterator<Batch> abandoned = loader.epoch(manager);
+            abandoned.next().close();
+            assertEquals(allWindows(), firstRows(loader.epoch(manager)));
+        }
+    }
+
+    @Test
+    void theTrainersOverloadUsesTheLoaderRatherThanTheExecutor() throws Exception {
+        ExecutorService rejecting = Executors.newSingleThreadExecutor();
+        rejecting.shutdown();
+        try (SequenceDataset dataset = prepare(true);
+             NDManager manager = NDManager.newBaseManager()) {
+            // DJL's own iteration would submit its record fetching to the executor and be rejected
+            assertEquals(allWindows(), firstRows(dataset.getData(manager, rejecting).iterator()));
+        }
+    }
+
+    @Test
+    void aClosedLoaderRejectsNewEpochs() throws IOException {
+        try (SequenceDataset dataset = prepare(false);
+             NDManager manager = NDManager.newBaseManager()) {
+            PrefetchingBatchLoader loader = new PrefetchingBatchLoader(dataset, 1, 1);
+            loader.close();
+            assertThrows(IllegalStateException.class, () -> loader.epoch(manager));
+        }
+    }
+
+    /**
+     * The sorted first rows of every delivered window, recovered from the action of its first transition.
+     */
+    private static List<Integer> firstRows(Iterator<Batch> batches) {
+        List<Integer> rows = new ArrayList<>();
+        while (batches.hasNext()) {
+            try (Batch batch = batches.next()) {
+                float[] x = batch.getData().get(0).toFloatArray();
+                for (int b = 0; b < batch.getSize(); b++) {
+                    rows.add((int) x[b * HORIZON * DIM]);
+                }
+            }
+        }
+        Collections.sort(rows);
+        return rows;
+    }
+
+    private static List<Integer> allWindows() {
+        List<Integer> rows = new ArrayList<>();
+        for (int w = 0; w < WINDOWS; w++) {
+            rows.add(w);
+        }
+        return rows;
+    }
+
+    private SequenceDataset prepare(boolean prefetch) throws IOException {
+        float[] episode = new float[EPISODE_ROWS * DIM];
+        for (int i = 0; i < episode.length; i++) {
+            episode[i] = i % DIM == 0 ? i / DIM : -1;
+        }
+        Path path = directory.resolve("episodes.bin");
+        SequenceDataset.write(path, DIM, new float[][]{episode});
+        SequenceDataset.Builder builder = SequenceDataset.builder()
+                .setPath(path)
+                .setHorizon(HORIZON)
+                .setActionDim(1)
+                .setSampling(3, true)
+                .optSeed(5);
+        if (prefetch) {
+            builder.optPrefetch(2, 2);
+        }
+        SequenceDataset dataset = builder.build();
+        dataset.prepare(null);
+        return dataset;
+    }
+}
@@ -0,0 +1,108 @@
+package org.technodrome.diffuser.datasets;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.training.dataset.Batch;
+import ai.djl.training.dataset.Record;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SequenceDatasetTest {
+
+    private static final int DIM = 3;
+    private static final int ACTION_DIM = 1;
+    private static final int HORIZON = 2;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void closingABatchLeavesTheCallersManagerOpen() throws IOException {
+        try (SequenceDataset dataset = prepare(0);
+             NDManager manager = NDManager.newBaseManager()) {
+            Iterator<Batch> batches = dataset.getData(manager).iterator();
+            try (Batch first = batches.next()) {
+                assertEquals(new Shape(2, HORIZON, DIM), first.getData().get(0).getShape());
+            }
+            try (Batch second = batches.next()) {
+                assertEquals(new Shape(2, DIM - ACTION_DIM), second.getData().get(1).getShape());
+            }
+            assertTrue(manager.isOpen());
+            assertEquals(0, manager.getManagedArrays().size());
+        }
+    }
+
+    @Test
+    void batchesHoldTheWindowsAndTheirFirstObservations() throws IOException {
+        try (SequenceDataset dataset = prepare(0);
+             NDManager manager = NDManager.newBaseManager();
+             Batch batch = dataset.getBatch(manager, new int[]{3, 0}, 2)) {
+            // episode 0 has windows 0..3 over rows whose values are 10 * row + dimension
+            assertArrayEquals(new float[]{30, 31, 32, 40, 41, 42, 0, 1, 2, 10, 11, 12},
+                    batch.getData().get(0).toFloatArray());
+            assertArrayEquals(new float[]{31, 32, 1, 2}, batch.getData().get(1).toFloatArray());
+        }
+    }
+
+    @Test
+    void getLeavesOnlyTheRecordOnTheManager() throws IOException {
+        try (SequenceDataset dataset = prepare(0);
+             NDManager manager = NDManager.newBaseManager()) {
+            Record record = dataset.get(manager, 1);
+            NDArray x = record.getData().get(0);
+            assertEquals(new Shape(HORIZON, DIM), x.getShape());
+            assertArrayEquals(new float[]{10, 11, 12, 20, 21, 22}, x.toFloatArray());
+            assertEquals(2, manager.getManagedArrays().size());
+        }
+    }
+
+    @Test
+    void prefetchedBatchesCanBeClosedInARow() throws IOException {
+        try (SequenceDataset dataset = prepare(2);
+             NDManager manager = NDManager.newBaseManager()) {
+            int windows = 0;
+            for (Batch batch : dataset.getData(manager)) {
+                try (batch) {
+                    windows += batch.getSize();
+                }
+            }
+            assertEquals(dataset.size(), windows);
+            assertEquals(0, manager.getManagedArrays().size());
+        }
+    }
+
+    private SequenceDataset prepare(int prefetchThreads) throws IOException {
+        // two episodes of 5 and 3 rows, so 4 + 2 windows
+        float[][] episodes = new float[][]{rows(0, 5), rows(5, 3)};
+        Path path = directory.resolve("episodes.bin");
+        SequenceDataset.write(path, DIM, episodes);
+        SequenceDataset.Builder builder = SequenceDataset.builder()
+                .setPath(path)
+                .setHorizon(HORIZON)
+                .setActionDim(ACTION_DIM)
+                .setSampling(2, false);
+        if (prefetchThreads > 0) {
+            builder.optPrefetch(prefetchThreads, 2);
+        }
+        SequenceDataset dataset = builder.build();
+        dataset.prepare(null);
+        return dataset;
+    }
+
+    private static float[] rows(int first, int count) {
+        float[] rows = new float[count * DIM];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = 10 * (first + i / DIM) + i % DIM;
+        }
+        return rows;
+    }
+}
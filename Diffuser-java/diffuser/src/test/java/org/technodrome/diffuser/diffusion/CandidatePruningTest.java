@@ -0,0 +1,82 @@
+package org.technodrome.diffuser.diffusion;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import org.junit.jupiter.api.Test;
+import org.technodrome.diffuser.Denoiser;
+import org.technodrome.diffuser.RecordingDenoiser;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class CandidatePruningTest {
+
+    private static final int HORIZON = 2;
+    private static final int TIMESTEPS = 10;
+
+    // the value of a trajectory is the sum of its entries
+    private static final Denoiser SUM = (x, cond, t, isTraining) -> x.sum(new int[]{1, 2}).reshape(-1, 1);
+
+    @Test
+    void checkpointsAreCopiedAndSorted() {
+        int[] checkpoints = {30, 70, 50};
+        CandidatePruning pruning = new CandidatePruning(null, checkpoints, 0.5, 1);
+        checkpoints[0] = 0;
+
+        pruning.checkpoints()[0] = 0;
+
+        assertArrayEquals(new int[]{30, 50, 70}, pruning.checkpoints());
+        assertArrayEquals(new int[]{70, 50, 30}, pruning.descendingCheckpoints());
+        assertEquals(pruning, new CandidatePruning(null, new int[]{50, 30, 70}, 0.5, 1));
+        assertEquals(pruning.hashCode(), new CandidatePruning(null, new int[]{50, 30, 70}, 0.5, 1).hashCode());
+    }
+
+    @Test
+    void constructorRejectsInvalidSettings() {
+        assertThrows(IllegalArgumentException.class, () -> new CandidatePruning(null, new int[]{5}, 1.0, 1));
+        assertThrows(IllegalArgumentException.class, () -> new CandidatePruning(null, new int[]{5}, -0.1, 1));
+        assertThrows(IllegalArgumentException.class, () -> new CandidatePruning(null, new int[]{5}, 0.5, 0));
+    }
+
+    @Test
+    void prunedSamplingCarriesOnlyTheSurvivors() {
+        RecordingDenoiser denoiser = new RecordingDenoiser();
+        try (GaussianDiffusion diffusion = RecordingDenoiser.diffusion(denoiser, HORIZON, TIMESTEPS);
+             ValueDiffusion value = new ValueDiffusion(SUM, diffusion, "value_l2");
+             NDManager manager = NDManager.newBaseManager()) {
+            assumeTopK(manager);
+            Map<Integer, NDArray> cond = Map.of(0, manager.randomNormal(new Shape(8, RecordingDenoiser.OBSERVATION_DIM)));
+
+            ValueDiffusion.Ranking ranking = diffusion.prunedSample(cond, null, TIMESTEPS, 0.0,
+                    new CandidatePruning(value, new int[]{5}, 0.5, 2));
+
+            assertEquals(4, ranking.indices().size());
+            float[] values = ranking.values().toFloatArray();
+            for (int k = 1; k < values.length; k++) {
+                assertTrue(values[k - 1] >= values[k]);
+            }
+            // steps 9..5 on all candidates, 4..0 on the survivors
+            assertEquals(5, denoiser.getRows().stream().filter(rows -> rows == 8).count());
+            assertEquals(5, denoiser.getRows().stream().filter(rows -> rows == 4).count());
+        }
+    }
+
+    /**
+     * Pruning relies on topK, which the PyTorch engine implements but MXNet does not.
+     */
+    private static void assumeTopK(NDManager manager) {
+        boolean supported = true;
+        try {
+            manager.create(new float[]{1, 2}).topK(1, 0, true, true);
+        } catch (UnsupportedOperationException e) {
+            supported = false;
+        }
+        assumeTrue(supported, "engine " + manager.getEngine().getEngineName() + " has no topK");
+    }
+}
@@ -0,0 +1,144 @@
+package org.technodrome.diffuser.diffusion;
+
+import ai.djl.Device;
+import ai.djl.Model;
+import ai.djl.engine.Engine;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.training.GradientCollector;
+import ai.djl.training.ParameterStore;
+import org.junit.jupiter.api.Test;
+import org.technodrome.diffuser.LinearDenoiser;
+import org.technodrome.diffuser.RecordingDenoiser;
+import org.technodrome.diffuser.diffusion.helpers.loss.WeightedLoss;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GaussianDiffusionTest {
+
+    private static final int HORIZON = 4;
+    private static final int TIMESTEPS = 10;
+    private static final int TRANSITION_DIM = RecordingDenoiser.ACTION_DIM + RecordingDenoiser.OBSERVATION_DIM;
+
+    @Test
+    void pSampleLoopDenoisesEveryTimestepAndKeepsTheConditions() {
+        RecordingDenoiser denoiser = new RecordingDenoiser();
+        try (GaussianDiffusion diffusion = RecordingDenoiser.diffusion(denoiser, HORIZON, TIMESTEPS);
+             NDManager manager = NDManager.newBaseManager()) {
+            NDArray observation = manager.create(new float[]{0.1f, 0.2f, 0.3f, -0.1f, -0.2f, -0.3f}, new Shape(2, 3));
+
+            GaussianDiffusion.Sample sample = diffusion.pSampleLoop(new Shape(2, HORIZON, TRANSITION_DIM),
+                    Map.of(0, observation), true);
+
+            // the step temporaries are gone: only the condition and the sample are left on the caller's manager
+            assertEquals(4, manager.getManagedArrays().stream().filter(array -> !array.isReleased()).count());
+            assertEquals(TIMESTEPS, denoiser.getRows().size());
+            assertEquals(new Shape(2, HORIZON, TRANSITION_DIM), sample.trajectories().getShape());
+            assertEquals(new Shape(2, TIMESTEPS + 1, HORIZON, TRANSITION_DIM), sample.chains().getShape());
+            assertArrayEquals(observation.toFloatArray(),
+                    sample.trajectories().get(":, 0, " + RecordingDenoiser.ACTION_DIM + ":").toFloatArray());
+            assertArrayEquals(sample.trajectories().toFloatArray(),
+                    sample.chains().get(":, " + TIMESTEPS).toFloatArray());
+        }
+    }
+
+    @Test
+    void ddimSamplingCallsTheDenoiserOncePerStep() {
+        RecordingDenoiser denoiser = new RecordingDenoiser();
+        try (GaussianDiffusion diffusion = RecordingDenoiser.diffusion(denoiser, HORIZON, TIMESTEPS);
+             NDManager manager = NDManager.newBaseManager()) {
+            NDArray observation = manager.randomUniform(-1, 1, new Shape(3, RecordingDenoiser.OBSERVATION_DIM));
+            Map<Integer, NDArray> cond = Map.of(0, observation);
+
+            GaussianDiffusion.Sample sample = diffusion.conditionalSample(cond, null, 3, 0.5);
+            assertEquals(3, denoiser.getRows().size());
+            assertArrayEquals(observation.toFloatArray(),
+                    sample.trajectories().get(":, 0, " + RecordingDenoiser.ACTION_DIM + ":").toFloatArray());
+
+            // as many steps as timesteps is the DDPM loop
+            diffusion.conditionalSample(cond, null, TIMESTEPS, 0.5);
+            assertEquals(3 + TIMESTEPS, denoiser.getRows().size());
+
+            Shape shape = new Shape(3, HORIZON, TRANSITION_DIM);
+            assertThrows(IllegalArgumentException.class, () -> diffusion.ddimSampleLoop(shape, cond, 0, 0.0, false));
+            assertThrows(IllegalArgumentException.class,
+                    () -> diffusion.ddimSampleLoop(shape, cond, TIMESTEPS + 1, 0.0, false));
+        }
+    }
+
+    @Test
+    void picardSamplingMatchesTheSequentialSampler() {
+        RecordingDenoiser denoiser = new RecordingDenoiser();
+        try (GaussianDiffusion diffusion = RecordingDenoiser.diffusion(denoiser, HORIZON, TIMESTEPS);
+             NDManager manager = NDManager.newBaseManager()) {
+            Map<Integer, NDArray> cond = Map.of(0, manager.randomUniform(-1, 1, new Shape(2, RecordingDenoiser.OBSERVATION_DIM)));
+            Shape shape = new Shape(2, HORIZON, TRANSITION_DIM);
+
+            // both draw the starting noise first, and deterministic DDIM draws no other noise that matters
+            Engine.getInstance().setRandomSeed(11);
+            NDArray sequential = diffusion.ddimSampleLoop(shape, cond, 5, 0.0, false).trajectories();
+            denoiser.getRows().clear();
+            Engine.getInstance().setRandomSeed(11);
+            NDArray parallel = diffusion.picardSampleLoop(shape, cond, 5, 0.0, 3, 1e-6).trajectories();
+
+            assertArrayEquals(sequential.toFloatArray(), parallel.toFloatArray(), 1e-4f);
+            // the window's three states go through the denoiser together
+            assertEquals(6L, denoiser.getRows().get(0));
+        }
+    }
+
+    @Test
+    void strideSequenceStepsDownAConstantStride() {
+        assertArrayEquals(new int[]{99, 74, 49, 24}, GaussianDiffusion.strideSequence(100, 4));
+        assertArrayEquals(new int[]{99}, GaussianDiffusion.strideSequence(100, 1));
+    }
+
+    @Test
+    void strideSequenceOfEveryTimestepIsTheFullSchedule() {
+        int[] sequence = GaussianDiffusion.strideSequence(8, 8);
+        assertArrayEquals(new int[]{7, 6, 5, 4, 3, 2, 1, 0}, sequence);
+    }
+
+    @Test
+    void halvedStrideSequencesNest() {
+        int[] teacher = GaussianDiffusion.strideSequence(1000, 8);
+        int[] student = GaussianDiffusion.strideSequence(1000, 4);
+        assertEquals(teacher.length / 2, student.length);
+        for (int k = 0; k < student.length; k++) {
+            assertEquals(teacher[2 * k], student[k]);
+        }
+    }
+
+    @Test
+    void strideSequenceRejectsStepsThatDoNotDivideTimesteps() {
+        assertThrows(IllegalArgumentException.class, () -> GaussianDiffusion.strideSequence(100, 3));
+        assertThrows(IllegalArgumentException.class, () -> GaussianDiffusion.strideSequence(100, 0));
+    }
+
+    @Test
+    void trainingLossBackpropagatesToTheDenoiser() {
+        try (Model model = Model.newInstance("denoiser");
+             NDManager manager = NDManager.newBaseManager()) {
+            LinearDenoiser denoiser = new LinearDenoiser(model, 5);
+            try (GaussianDiffusion diffusion = new GaussianDiffusion(denoiser, 4, 3, 2, 10, "l2", true, false,
+                    1.0, 1.0, null, Device.cpu());
+                 GradientCollector collector = manager.getEngine().newGradientCollector()) {
+                NDArray x = manager.randomNormal(new Shape(6, 4, 5));
+                Map<Integer, NDArray> cond = Map.of(0, manager.randomNormal(new Shape(6, 3)));
+
+                WeightedLoss.Result result = diffusion.loss(x, cond);
+                collector.backward(result.loss());
+
+                NDArray weight = new ParameterStore(manager, false)
+                        .getValue(denoiser.getBlock().getParameters().get("weight"), Device.cpu(), true);
+                assertTrue(weight.getGradient().abs().sum().getFloat() > 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package org.technodrome.diffuser.diffusion;
+
+import ai.djl.ndarray.NDManager;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LossAwareTimestepSamplerTest {
+
+    @Test
+    void probabilitiesStayUniformUntilEveryHistoryIsFull() {
+        LossAwareTimestepSampler sampler = new LossAwareTimestepSampler(4, 2, 0.1);
+        assertArrayEquals(new double[]{0.25, 0.25, 0.25, 0.25}, sampler.probabilities(), 0.0);
+
+        try (NDManager manager = NDManager.newBaseManager()) {
+            sampler.update(new int[]{0, 0, 1, 1, 2, 2, 3}, manager.create(new float[]{5, 5, 1, 1, 2, 2, 9}));
+            assertFalse(sampler.isWarm());
+            assertArrayEquals(new double[]{0.25, 0.25, 0.25, 0.25}, sampler.probabilities(), 0.0);
+            assertNull(sampler.sample(manager, 8).weights());
+        }
+    }
+
+    @Test
+    void probabilitiesFollowTheRootMeanSquareLoss() {
+        LossAwareTimestepSampler sampler = new LossAwareTimestepSampler(2, 2, 0.0);
+        try (NDManager manager = NDManager.newBaseManager()) {
+            sampler.update(new int[]{0, 0, 1, 1}, manager.create(new float[]{1, 1, 3, 3}));
+            assertTrue(sampler.isWarm());
+            assertArrayEquals(new double[]{0.25, 0.75}, sampler.probabilities(), 1e-12);
+
+            // the ring forgets the oldest losses
+            sampler.update(new int[]{0, 0}, manager.create(new float[]{3, 3}));
+            assertArrayEquals(new double[]{0.5, 0.5}, sampler.probabilities(), 1e-12);
+        }
+    }
+
+    @Test
+    void probabilitiesMixInTheUniformFraction() {
+        LossAwareTimestepSampler sampler = new LossAwareTimestepSampler(2, 2, 0.5);
+        try (NDManager manager = NDManager.newBaseManager()) {
+            sampler.update(new int[]{0, 0, 1, 1}, manager.create(new float[]{1, 1, 3, 3}));
+            double[] p = sampler.probabilities();
+            assertArrayEquals(new double[]{0.375, 0.625}, p, 1e-12);
+            assertEquals(1.0, p[0] + p[1], 1e-12);
+        }
+    }
+
+    @Test
+    void warmDrawsCarryInverseProbabilityWeights() {
+        LossAwareTimestepSampler sampler = new LossAwareTimestepSampler(2, 2, 0.0);
+        try (NDManager manager = NDManager.newBaseManager()) {
+            sampler.update(new int[]{0, 0, 1, 1}, manager.create(new float[]{1, 1, 3, 3}));
+
+            TimestepSampler.Draw draw = sampler.sample(manager, 64);
+            float[] weights = draw.weights().toFloatArray();
+            long[] t = draw.t().toLongArray();
+            for (int b = 0; b < 64; b++) {
+                assertEquals(draw.timesteps()[b], t[b]);
+                double expected = draw.timesteps()[b] == 0 ? 2.0 : 2.0 / 3.0;
+                assertEquals(expected, weights[b], 1e-6);
+            }
+        }
+    }
+
+    @Test
+    void probabilitiesDoNotDriftAfterALargeLossLeavesTheRing() {
+        LossAwareTimestepSampler sampler = new LossAwareTimestepSampler(2, 2, 0.0);
+        try (NDManager manager = NDManager.newBaseManager()) {
+            // a squared loss of 1e16 absorbs the 1 next to it in a running double sum
+            sampler.update(new int[]{0, 0, 1, 1}, manager.create(new float[]{1e8f, 1, 1, 1}));
+            sampler.update(new int[]{0}, manager.create(new float[]{1}));
+            assertArrayEquals(new double[]{0.5, 0.5}, sampler.probabilities(), 1e-12);
+        }
+    }
+
+    /**
+     * SGD on one parameter shared by every timestep, where timestep 0 is a hundred times as steep as the others:
+     * uniform draws need a step size small enough for the steep timestep and then mostly take tiny steps, while
+     * importance sampling draws the steep timestep often and scales every step to the same expected update.
+     */
+    @Test
+    void importanceSamplingConvergesInFewerSteps() {
+        double[] slopes = {100, 1, 1, 1, 1, 1, 1, 1, 1, 1};
+        int trials = 100;
+        long uniform = 0;
+        long importance = 0;
+        try (NDManager manager = NDManager.newBaseManager()) {
+            for (int trial = 0; trial < trials; trial++) {
+                uniform += stepsToConverge(null, slopes, manager);
+                importance += stepsToConverge(new LossAwareTimestepSampler(slopes.length, 1, 0.0), slopes, manager);
+            }
+        }
+        // about 114 against 65 steps on average
+        assertTrue(importance < 0.75 * uniform, importance / trials + " against " + uniform / trials + " steps");
+    }
+
+    private static int stepsToConverge(LossAwareTimestepSampler sampler, double[] slopes, NDManager manager) {
+        double theta = 1.0;
+        int steps = 0;
+        while (Math.abs(theta) > 1e-4 && steps < 5000) {
+            steps++;
+            int t;
+            double weight = 1.0;
+            if (sampler == null) {
+                t = ThreadLocalRandom.current().nextInt(slopes.length);
+            } else {
+                try (NDManager scope = manager.newSubManager()) {
+                    TimestepSampler.Draw draw = sampler.sample(scope, 1);
+                    t = draw.timesteps()[0];
+                    if (draw.weights() != null) {
+                        weight = draw.weights().getFloat(0);
+                    }
+                    sampler.update(draw.timesteps(), scope.create(new float[]{(float) (slopes[t] * theta * theta / 2)}));
+                }
+            }
+            theta -= 0.015 * weight * slopes[t] * theta;
+        }
+        return steps;
+    }
+
+    @Test
+    void constructorRejectsInvalidSettings() {
+        assertThrows(IllegalArgumentException.class, () -> new LossAwareTimestepSampler(0, 10, 0.001));
+        assertThrows(IllegalArgumentException.class, () -> new LossAwareTimestepSampler(10, 0, 0.001));
+        assertThrows(IllegalArgumentException.class, () -> new LossAwareTimestepSampler(10, 10, 1.5));
+    }
+}
@@ -0,0 +1,59 @@
+package org.technodrome.diffuser.diffusion;
+
+import ai.djl.metric.Metric;
+import ai.djl.metric.Metrics;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import org.junit.jupiter.api.Test;
+import org.technodrome.diffuser.RecordingDenoiser;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SamplingInstrumentationTest {
+
+    private static final int HORIZON = 2;
+    private static final int TIMESTEPS = 10;
+
+    @Test
+    void publishReportsTheTimestepsThatRanAndResets() {
+        SamplingInstrumentation instrumentation = new SamplingInstrumentation(TIMESTEPS, true);
+        try (GaussianDiffusion diffusion = RecordingDenoiser.diffusion(new RecordingDenoiser(), HORIZON, TIMESTEPS);
+             NDManager manager = NDManager.newBaseManager()) {
+            diffusion.setInstrumentation(instrumentation);
+            diffusion.conditionalSample(Map.of(0, manager.randomNormal(new Shape(2, RecordingDenoiser.OBSERVATION_DIM))),
+                    null, 4, 0.0);
+        }
+
+        Metrics metrics = new Metrics();
+        instrumentation.publish(metrics);
+        for (String name : List.of(SamplingInstrumentation.STEP_METRIC, SamplingInstrumentation.DENOISER_METRIC,
+                SamplingInstrumentation.POSTERIOR_METRIC, SamplingInstrumentation.STEP_METRIC + "_p99")) {
+            List<Metric> perTimestep = metrics.getMetric(name);
+            assertEquals(Set.of("9", "6", "3", "0"), perTimestep.stream()
+                    .map(metric -> metric.getDimensions()[0].getValue()).collect(Collectors.toSet()), name);
+        }
+        List<Metric> arrays = metrics.getMetric(SamplingInstrumentation.ARRAYS_METRIC);
+        assertEquals(Set.of("request", "output"), arrays.stream()
+                .map(metric -> metric.getDimensions()[0].getValue()).collect(Collectors.toSet()));
+        assertTrue(arrays.stream().allMatch(metric -> metric.getValue().longValue() > 0));
+
+        Metrics again = new Metrics();
+        instrumentation.publish(again);
+        assertTrue(again.getMetric(SamplingInstrumentation.STEP_METRIC).isEmpty());
+    }
+
+    @Test
+    void instrumentationMustCoverTheModelsTimesteps() {
+        try (GaussianDiffusion diffusion = RecordingDenoiser.diffusion(new RecordingDenoiser(), HORIZON, TIMESTEPS)) {
+            assertThrows(IllegalArgumentException.class,
+                    () -> diffusion.setInstrumentation(new SamplingInstrumentation(TIMESTEPS + 1, false)));
+        }
+    }
+}
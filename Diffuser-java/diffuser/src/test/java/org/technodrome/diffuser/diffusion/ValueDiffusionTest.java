@@ -0,0 +1,87 @@
+package org.technodrome.diffuser.diffusion;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import org.junit.jupiter.api.Test;
+import org.technodrome.diffuser.Denoiser;
+import org.technodrome.diffuser.RecordingDenoiser;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class ValueDiffusionTest {
+
+    private static final int HORIZON = 2;
+    private static final int TIMESTEPS = 10;
+    private static final int TRANSITION_DIM = RecordingDenoiser.ACTION_DIM + RecordingDenoiser.OBSERVATION_DIM;
+
+    // the value of a trajectory is the sum of its entries
+    private static final Denoiser SUM = (x, cond, t, isTraining) -> x.sum(new int[]{1, 2}).reshape(-1, 1);
+
+    @Test
+    void bestOfNRanksCandidatesByValue() {
+        try (GaussianDiffusion diffusion = RecordingDenoiser.diffusion(new RecordingDenoiser(), HORIZON, TIMESTEPS);
+             ValueDiffusion value = new ValueDiffusion(SUM, diffusion, "value_l2");
+             NDManager manager = NDManager.newBaseManager()) {
+            assumeTopK(manager);
+            NDArray candidates = manager.create(new float[]{1, 3, 2, 0}).reshape(4, 1, 1)
+                    .broadcast(new Shape(4, HORIZON, TRANSITION_DIM));
+
+            assertArrayEquals(new float[]{10, 30, 20, 0}, value.values(candidates, null).toFloatArray());
+
+            ValueDiffusion.Ranking ranking = value.bestOfN(candidates, null, 2);
+            assertArrayEquals(new long[]{1, 2}, ranking.indices().toLongArray());
+            assertArrayEquals(new float[]{30, 20}, ranking.values().toFloatArray());
+            assertEquals(3f, ranking.trajectories().getFloat(0, 0, 0));
+            assertSame(manager, ranking.trajectories().getManager());
+        }
+    }
+
+    @Test
+    void lossComparesPredictedValuesToTargets() {
+        Denoiser zero = (x, cond, t, isTraining) -> x.sum(new int[]{1, 2}).reshape(-1, 1).mul(0);
+        try (GaussianDiffusion diffusion = RecordingDenoiser.diffusion(new RecordingDenoiser(), HORIZON, TIMESTEPS);
+             ValueDiffusion value = new ValueDiffusion(zero, diffusion, "value_l2");
+             NDManager manager = NDManager.newBaseManager()) {
+            NDArray x = manager.randomNormal(new Shape(3, HORIZON, TRANSITION_DIM));
+            Map<Integer, NDArray> cond = Map.of(0, manager.randomNormal(new Shape(3, RecordingDenoiser.OBSERVATION_DIM)));
+            NDArray target = manager.create(new float[]{1, 2, 3}, new Shape(3, 1));
+
+            assertEquals(14f / 3, value.loss(x, cond, target).getFloat(), 1e-5);
+        }
+    }
+
+    @Test
+    void guidedSamplesCarryTheirValues() {
+        try (GaussianDiffusion diffusion = RecordingDenoiser.diffusion(new RecordingDenoiser(), HORIZON, TIMESTEPS);
+             ValueDiffusion value = new ValueDiffusion(SUM, diffusion, "value_l1");
+             NDManager manager = NDManager.newBaseManager()) {
+            Map<Integer, NDArray> cond = Map.of(0, manager.randomNormal(new Shape(3, RecordingDenoiser.OBSERVATION_DIM)));
+
+            GaussianDiffusion.Sample sample = diffusion.conditionalSample(cond, null, ValueGuide.of(value));
+
+            assertEquals(new Shape(3, HORIZON, TRANSITION_DIM), sample.trajectories().getShape());
+            assertArrayEquals(sample.trajectories().sum(new int[]{1, 2}).toFloatArray(),
+                    sample.values().toFloatArray(), 1e-4f);
+        }
+    }
+
+    /**
+     * Ranking relies on topK, which the PyTorch engine implements but MXNet does not.
+     */
+    private static void assumeTopK(NDManager manager) {
+        boolean supported = true;
+        try {
+            manager.create(new float[]{1, 2}).topK(1, 0, true, true);
+        } catch (UnsupportedOperationException e) {
+            supported = false;
+        }
+        assumeTrue(supported, "engine " + manager.getEngine().getEngineName() + " has no topK");
+    }
+}
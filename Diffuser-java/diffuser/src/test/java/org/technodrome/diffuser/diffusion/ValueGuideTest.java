@@ -0,0 +1,77 @@
+package org.technodrome.diffuser.diffusion;
+
+import ai.djl.engine.Engine;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import org.junit.jupiter.api.Test;
+import org.technodrome.diffuser.Denoiser;
+import org.technodrome.diffuser.RecordingDenoiser;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ValueGuideTest {
+
+    private static final int HORIZON = 2;
+    private static final int TIMESTEPS = 10;
+
+    @Test
+    void everyGuideStepScoresTheWholeBatchOnce() {
+        List<Long> rows = new CopyOnWriteArrayList<>();
+        try (GaussianDiffusion diffusion = RecordingDenoiser.diffusion(new RecordingDenoiser(), HORIZON, TIMESTEPS);
+             ValueDiffusion value = new ValueDiffusion(sum(rows), diffusion, "value_l2");
+             NDManager manager = NDManager.newBaseManager()) {
+            diffusion.conditionalSample(conditions(manager, 3), null, new ValueGuide(value, 0.01, 2, 4, false));
+
+            // guide steps at timesteps 9..4, then the final values
+            assertEquals(2 * 6 + 1, rows.size());
+            assertTrue(rows.stream().allMatch(r -> r == 3), rows.toString());
+        }
+    }
+
+    @Test
+    void guidanceRaisesTheValueOfTheSamples() {
+        try (GaussianDiffusion diffusion = RecordingDenoiser.diffusion(new RecordingDenoiser(), HORIZON, TIMESTEPS);
+             ValueDiffusion value = new ValueDiffusion(sum(new CopyOnWriteArrayList<>()), diffusion, "value_l2");
+             NDManager manager = NDManager.newBaseManager()) {
+            Map<Integer, NDArray> cond = conditions(manager, 4);
+
+            // the guide steps draw no noise, so both loops see the same noise
+            Engine.getInstance().setRandomSeed(5);
+            float[] unguided = diffusion.conditionalSample(cond, null, new ValueGuide(value, 0.1, 1, TIMESTEPS, false))
+                    .values().toFloatArray();
+            Engine.getInstance().setRandomSeed(5);
+            float[] guided = diffusion.conditionalSample(cond, null, new ValueGuide(value, 0.1, 1, 0, false))
+                    .values().toFloatArray();
+
+            for (int b = 0; b < guided.length; b++) {
+                assertTrue(guided[b] > unguided[b], guided[b] + " <= " + unguided[b]);
+            }
+        }
+    }
+
+    @Test
+    void constructorRejectsNoGuideSteps() {
+        assertThrows(IllegalArgumentException.class, () -> new ValueGuide(null, 0.001, 0, 0, true));
+    }
+
+    /**
+     * A value model summing each trajectory, recording the rows of every call.
+     */
+    private static Denoiser sum(List<Long> rows) {
+        return (x, cond, t, isTraining) -> {
+            rows.add(x.getShape().get(0));
+            return x.sum(new int[]{1, 2}).reshape(-1, 1);
+        };
+    }
+
+    private static Map<Integer, NDArray> conditions(NDManager manager, int rows) {
+        return Map.of(0, manager.randomUniform(-1, 1, new Shape(rows, RecordingDenoiser.OBSERVATION_DIM)));
+    }
+}
@@ -0,0 +1,67 @@
+package org.technodrome.diffuser.diffusion.helpers;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.training.GradientCollector;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class ConditioningPlanTest {
+
+    @Test
+    void applyOverwritesTheConditionedObservations() {
+        try (NDManager manager = NDManager.newBaseManager()) {
+            NDArray x = manager.arange(12f).reshape(1, 3, 4);
+            Map<Integer, NDArray> cond = Map.of(0, manager.create(new float[]{-1, -2, -3}, new Shape(1, 3)),
+                    2, manager.create(new float[]{-4, -5, -6}, new Shape(1, 3)));
+            try (ConditioningPlan plan = ConditioningPlan.fromConditions(manager, cond, x.getShape(), 1)) {
+                assertSame(x, plan.apply(x));
+                assertArrayEquals(new float[]{0, -1, -2, -3, 4, 5, 6, 7, 8, -4, -5, -6}, x.toFloatArray());
+            }
+        }
+    }
+
+    @Test
+    void inpaintOverwritesWhereverTheMaskIsSet() {
+        try (NDManager manager = NDManager.newBaseManager()) {
+            NDArray x = manager.arange(12f).reshape(2, 2, 3);
+            NDArray mask = manager.create(new boolean[]{true, false, false, false, false, true}, new Shape(2, 3));
+            try (ConditioningPlan plan = ConditioningPlan.inpaint(manager.full(new Shape(2, 3), 9f), mask)) {
+                plan.apply(x);
+                assertArrayEquals(new float[]{9, 1, 2, 3, 4, 9, 9, 7, 8, 9, 10, 9}, x.toFloatArray());
+            }
+        }
+    }
+
+    @Test
+    void blendMatchesApplyAndPassesGradientsOnlyOutsideTheMask() {
+        try (NDManager manager = NDManager.newBaseManager()) {
+            NDArray x = manager.arange(8f).reshape(1, 2, 4);
+            x.setRequiresGradient(true);
+            Map<Integer, NDArray> cond = Map.of(1, manager.create(new float[]{9, 9}, new Shape(1, 2)));
+            try (ConditioningPlan plan = ConditioningPlan.fromConditions(manager, cond, x.getShape(), 2);
+                 GradientCollector collector = manager.getEngine().newGradientCollector()) {
+                NDArray blended = plan.blend(x.mul(2));
+                collector.backward(blended.sum());
+
+                assertArrayEquals(new float[]{0, 2, 4, 6, 8, 10, 9, 9}, blended.toFloatArray());
+                assertArrayEquals(new float[]{2, 2, 2, 2, 2, 2, 0, 0}, x.getGradient().toFloatArray());
+            }
+        }
+    }
+
+    @Test
+    void anEmptyPlanLeavesXUntouched() {
+        try (NDManager manager = NDManager.newBaseManager();
+             ConditioningPlan plan = ConditioningPlan.fromConditions(manager, Map.of(), new Shape(1, 2, 3), 1)) {
+            NDArray x = manager.ones(new Shape(1, 2, 3));
+            assertSame(x, plan.apply(x));
+            assertSame(x, plan.blend(x));
+        }
+    }
+}
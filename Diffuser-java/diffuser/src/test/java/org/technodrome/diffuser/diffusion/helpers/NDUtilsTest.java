@@ -0,0 +1,58 @@
+package org.technodrome.diffuser.diffusion.helpers;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDList;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class NDUtilsTest {
+
+    @Test
+    void extractAllGathersEveryColumnAtTheTimesteps() {
+        try (NDManager manager = NDManager.newBaseManager()) {
+            // row r of the table is (3r, 3r + 1, 3r + 2)
+            NDArray table = manager.arange(0f, 15f).reshape(5, 3);
+            long[] times = {4, 0, 2};
+            Shape xShape = new Shape(3, 2, 7);
+            try (NDManager batch = manager.newSubManager()) {
+                NDArray t = batch.create(times);
+
+                NDList columns = NDUtils.extractAll(table, t, xShape);
+
+                assertEquals(3, columns.size());
+                for (int k = 0; k < 3; k++) {
+                    NDArray column = columns.get(k);
+                    assertEquals(new Shape(3, 1, 1), column.getShape());
+                    assertSame(batch, column.getManager());
+                    float[] expected = new float[times.length];
+                    for (int b = 0; b < times.length; b++) {
+                        expected[b] = 3 * times[b] + k;
+                    }
+                    assertArrayEquals(expected, column.toFloatArray());
+                }
+            }
+        }
+    }
+
+    @Test
+    void extractAllMatchesExtract() {
+        try (NDManager manager = NDManager.newBaseManager()) {
+            NDArray table = manager.randomUniform(0f, 1f, new Shape(10, 4));
+            NDArray t = manager.create(new long[]{9, 3, 3, 0, 7});
+            Shape xShape = new Shape(5, 8, 6);
+
+            NDList columns = NDUtils.extractAll(table, t, xShape);
+
+            for (int k = 0; k < 4; k++) {
+                NDArray single = NDUtils.extract(table.get(":, {}", k), t, xShape);
+                assertEquals(single.getShape(), columns.get(k).getShape());
+                assertArrayEquals(single.toFloatArray(), columns.get(k).toFloatArray(), 1e-7f);
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.technodrome.diffuser.diffusion.helpers;
+
+import ai.djl.Device;
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TrackingManagerTest {
+
+    @Test
+    void checkSumsTheRequestAndItsSubManagers() {
+        try (NDManager parent = NDManager.newBaseManager(Device.cpu());
+             TrackingManager tracking = TrackingManager.open("request", parent, Device.cpu(), 1 << 20)) {
+            tracking.getManager().zeros(new Shape(10));
+            try (NDManager step = tracking.getManager().newSubManager()) {
+                step.zeros(new Shape(20));
+                assertEquals(120, tracking.check());
+            }
+            assertEquals(40, tracking.check());
+            assertEquals(120, tracking.getPeakBytes());
+        }
+    }
+
+    @Test
+    void checkFailsOverTheBudget() {
+        try (NDManager parent = NDManager.newBaseManager(Device.cpu());
+             TrackingManager tracking = TrackingManager.open("request", parent, Device.cpu(), 100)) {
+            tracking.getManager().zeros(new Shape(26));
+            assertThrows(IllegalStateException.class, tracking::check);
+        }
+    }
+
+    @Test
+    void arraysLeftOnTheParentAreReported() {
+        try (NDManager parent = NDManager.newBaseManager(Device.cpu())) {
+            parent.zeros(new Shape(3));
+            TrackingManager tracking = TrackingManager.open("request", parent, Device.cpu(), 1 << 20);
+            NDArray returned = parent.zeros(new Shape(4));
+            tracking.returning(returned);
+            NDArray leaked = tracking.getManager().zeros(new Shape(5));
+            leaked.attach(parent);
+            assertNull(tracking.getReport());
+            tracking.close();
+
+            TrackingManager.Report report = tracking.getReport();
+            assertTrue(report.escapesChecked());
+            assertEquals(20, report.escapedBytes());
+            assertEquals(1, report.escaped().size());
+            assertTrue(report.escaped().get(0).startsWith(leaked.getUid()));
+        }
+    }
+
+    @Test
+    void overlappingRequestsSkipTheEscapeCheck() {
+        try (NDManager parent = NDManager.newBaseManager(Device.cpu())) {
+            TrackingManager first = TrackingManager.open("first", parent, Device.cpu(), 1 << 20);
+            TrackingManager second = TrackingManager.open("second", parent, Device.cpu(), 1 << 20);
+            parent.zeros(new Shape(2));
+            second.close();
+            first.close();
+
+            assertFalse(first.getReport().escapesChecked());
+            assertFalse(second.getReport().escapesChecked());
+            assertEquals(0, first.getReport().escaped().size());
+        }
+    }
+
+    @Test
+    void openRejectsANonPositiveBudget() {
+        try (NDManager parent = NDManager.newBaseManager(Device.cpu())) {
+            assertThrows(IllegalArgumentException.class, () -> TrackingManager.open("request", parent, Device.cpu(), 0));
+        }
+    }
+}
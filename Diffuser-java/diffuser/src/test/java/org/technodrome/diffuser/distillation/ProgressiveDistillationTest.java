@@ -0,0 +1,89 @@
+package org.technodrome.diffuser.distillation;
+
+import ai.djl.Model;
+import ai.djl.ndarray.NDManager;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.technodrome.diffuser.LinearDenoiser;
+import org.technodrome.diffuser.RecordingDenoiser;
+import org.technodrome.diffuser.datasets.SequenceDataset;
+import org.technodrome.diffuser.diffusion.GaussianDiffusion;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProgressiveDistillationTest {
+
+    private static final int HORIZON = 4;
+    private static final int TIMESTEPS = 8;
+    private static final int TRANSITION_DIM = RecordingDenoiser.ACTION_DIM + RecordingDenoiser.OBSERVATION_DIM;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void everyRoundHalvesTheStepsAndSavesItsStudent() throws IOException {
+        Path checkpoints = Files.createDirectory(directory.resolve("checkpoints"));
+        try (GaussianDiffusion teacher = RecordingDenoiser.diffusion(new RecordingDenoiser(), HORIZON, TIMESTEPS);
+             SequenceDataset dataset = prepare();
+             NDManager manager = NDManager.newBaseManager()) {
+            ProgressiveDistillation distillation = new ProgressiveDistillation(teacher, (t, round) -> {
+                Model model = Model.newInstance("student-" + round);
+                return new ProgressiveDistillation.Student(model, new LinearDenoiser(model, TRANSITION_DIM));
+            }, 4, 1, 5, 1e-2f, 1, checkpoints, 3);
+
+            // more iterations than batches, so the rounds also restart the epoch
+            List<ProgressiveDistillation.RoundResult> results = distillation.run(dataset, manager);
+
+            assertEquals(2, results.size());
+            assertEquals(2, results.get(0).steps());
+            assertEquals(1, results.get(1).steps());
+            for (ProgressiveDistillation.RoundResult result : results) {
+                assertTrue(Double.isFinite(result.loss()), result.toString());
+                assertTrue(Files.exists(checkpoints.resolve("student-" + result.steps() + "-0000.params")));
+            }
+            // the batches closed their own sub-managers and nothing else
+            assertTrue(manager.isOpen());
+            assertEquals(0, manager.getManagedArrays().size());
+        }
+    }
+
+    @Test
+    void constructorRejectsStepCountsThatAreNotHalvings() {
+        try (GaussianDiffusion teacher = RecordingDenoiser.diffusion(new RecordingDenoiser(), HORIZON, TIMESTEPS)) {
+            assertThrows(IllegalArgumentException.class, () -> new ProgressiveDistillation(teacher, null,
+                    4, 4, 1, 1e-3f, 1, directory, 0));
+            assertThrows(IllegalArgumentException.class, () -> new ProgressiveDistillation(teacher, null,
+                    6, 2, 1, 1e-3f, 1, directory, 0));
+            assertThrows(IllegalArgumentException.class, () -> new ProgressiveDistillation(teacher, null,
+                    16, 1, 1, 1e-3f, 1, directory, 0));
+        }
+    }
+
+    private SequenceDataset prepare() throws IOException {
+        Random random = new Random(1);
+        float[][] episodes = new float[2][6 * TRANSITION_DIM];
+        for (float[] episode : episodes) {
+            for (int i = 0; i < episode.length; i++) {
+                episode[i] = (float) random.nextGaussian();
+            }
+        }
+        Path path = directory.resolve("episodes.bin");
+        SequenceDataset.write(path, TRANSITION_DIM, episodes);
+        SequenceDataset dataset = SequenceDataset.builder()
+                .setPath(path)
+                .setHorizon(HORIZON)
+                .setActionDim(RecordingDenoiser.ACTION_DIM)
+                .setSampling(2, true)
+                .build();
+        dataset.prepare(null);
+        return dataset;
+    }
+}
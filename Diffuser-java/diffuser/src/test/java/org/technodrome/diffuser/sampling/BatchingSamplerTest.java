@@ -0,0 +1,77 @@
+package org.technodrome.diffuser.sampling;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import org.junit.jupiter.api.Test;
+import org.technodrome.diffuser.RecordingDenoiser;
+import org.technodrome.diffuser.diffusion.GaussianDiffusion;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BatchingSamplerTest {
+
+    private static final int HORIZON = 4;
+    private static final int TIMESTEPS = 10;
+
+    @Test
+    void implicitAndExplicitModelHorizonShareABatch() throws Exception {
+        RecordingDenoiser denoiser = new RecordingDenoiser();
+        try (GaussianDiffusion diffusion = RecordingDenoiser.diffusion(denoiser, HORIZON, TIMESTEPS);
+             BatchingSampler sampler = new BatchingSampler(diffusion, 16, Duration.ofSeconds(2), TIMESTEPS, 0.0);
+             NDManager first = NDManager.newBaseManager();
+             NDManager second = NDManager.newBaseManager()) {
+            CompletableFuture<GaussianDiffusion.Sample> implicit = sampler.submit(conditions(first, 2));
+            CompletableFuture<GaussianDiffusion.Sample> explicit = sampler.submit(conditions(second, 3), HORIZON);
+
+            GaussianDiffusion.Sample a = implicit.get(30, TimeUnit.SECONDS);
+            GaussianDiffusion.Sample b = explicit.get(30, TimeUnit.SECONDS);
+
+            assertTrue(denoiser.getRows().stream().allMatch(rows -> rows == 5), denoiser.getRows().toString());
+            assertEquals(new Shape(2, HORIZON, 5), a.trajectories().getShape());
+            assertEquals(new Shape(3, HORIZON, 5), b.trajectories().getShape());
+            assertSame(first, a.trajectories().getManager());
+            assertSame(second, b.trajectories().getManager());
+        }
+    }
+
+    @Test
+    void differentHorizonsAreSampledSeparately() throws Exception {
+        RecordingDenoiser denoiser = new RecordingDenoiser();
+        try (GaussianDiffusion diffusion = RecordingDenoiser.diffusion(denoiser, HORIZON, TIMESTEPS);
+             BatchingSampler sampler = new BatchingSampler(diffusion, 16, Duration.ofMillis(200), TIMESTEPS, 0.0);
+             NDManager manager = NDManager.newBaseManager()) {
+            CompletableFuture<GaussianDiffusion.Sample> shorter = sampler.submit(conditions(manager, 2), HORIZON - 1);
+            CompletableFuture<GaussianDiffusion.Sample> longer = sampler.submit(conditions(manager, 3), HORIZON);
+
+            assertEquals(new Shape(2, HORIZON - 1, 5), shorter.get(30, TimeUnit.SECONDS).trajectories().getShape());
+            assertEquals(new Shape(3, HORIZON, 5), longer.get(30, TimeUnit.SECONDS).trajectories().getShape());
+            assertTrue(denoiser.getRows().stream().noneMatch(rows -> rows == 5), denoiser.getRows().toString());
+        }
+    }
+
+    @Test
+    void requestsAfterCloseAreCancelled() {
+        try (GaussianDiffusion diffusion = RecordingDenoiser.diffusion(new RecordingDenoiser(), HORIZON, TIMESTEPS);
+             NDManager manager = NDManager.newBaseManager()) {
+            BatchingSampler sampler = new BatchingSampler(diffusion, 16, Duration.ofMillis(10), TIMESTEPS, 0.0);
+            sampler.close();
+
+            CompletableFuture<GaussianDiffusion.Sample> late = sampler.submit(conditions(manager, 1));
+            assertThrows(CancellationException.class, () -> late.get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    private static Map<Integer, NDArray> conditions(NDManager manager, int rows) {
+        return Map.of(0, manager.randomNormal(new Shape(rows, RecordingDenoiser.OBSERVATION_DIM)));
+    }
+}
@@ -0,0 +1,50 @@
+package org.technodrome.diffuser.sampling;
+
+import ai.djl.ndarray.NDArray;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.Shape;
+import org.junit.jupiter.api.Test;
+import org.technodrome.diffuser.RecordingDenoiser;
+import org.technodrome.diffuser.diffusion.GaussianDiffusion;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class RecedingHorizonPlannerTest {
+
+    private static final int HORIZON = 4;
+    private static final int TIMESTEPS = 10;
+
+    @Test
+    void plansSurviveTheConditionsManagerOfEveryTick() {
+        RecordingDenoiser denoiser = new RecordingDenoiser();
+        try (GaussianDiffusion diffusion = RecordingDenoiser.diffusion(denoiser, HORIZON, TIMESTEPS);
+             RecedingHorizonPlanner planner = new RecedingHorizonPlanner(diffusion, 4, TIMESTEPS, 2, 0.0)) {
+            for (int tick = 0; tick < 3; tick++) {
+                try (NDManager manager = NDManager.newBaseManager()) {
+                    Map<Integer, NDArray> cond = Map.of(0, manager.randomNormal(new Shape(2, RecordingDenoiser.OBSERVATION_DIM)));
+                    GaussianDiffusion.Sample sample = planner.plan(cond);
+
+                    assertSame(manager, sample.trajectories().getManager());
+                    assertEquals(new Shape(2, HORIZON, 5), sample.trajectories().getShape());
+                }
+            }
+        }
+        // one cold plan, then two warm-started ones
+        assertEquals(TIMESTEPS + 2 * 2, denoiser.getRows().size());
+    }
+
+    @Test
+    void aNewBatchSizeStartsCold() {
+        RecordingDenoiser denoiser = new RecordingDenoiser();
+        try (GaussianDiffusion diffusion = RecordingDenoiser.diffusion(denoiser, HORIZON, TIMESTEPS);
+             RecedingHorizonPlanner planner = new RecedingHorizonPlanner(diffusion, 4, TIMESTEPS, 2, 0.0);
+             NDManager manager = NDManager.newBaseManager()) {
+            planner.plan(Map.of(0, manager.randomNormal(new Shape(2, RecordingDenoiser.OBSERVATION_DIM))));
+            planner.plan(Map.of(0, manager.randomNormal(new Shape(3, RecordingDenoiser.OBSERVATION_DIM))));
+        }
+        assertEquals(2 * TIMESTEPS, denoiser.getRows().size());
+    }
+}
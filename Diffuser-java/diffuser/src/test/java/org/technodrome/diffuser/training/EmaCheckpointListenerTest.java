@@ -0,0 +1,125 @@
+package org.technodrome.diffuser.training;
+
+import ai.djl.MalformedModelException;
+import ai.djl.Model;
+import ai.djl.ndarray.NDManager;
+import ai.djl.ndarray.types.DataType;
+import ai.djl.ndarray.types.Shape;
+import ai.djl.nn.Block;
+import ai.djl.nn.Parameter;
+import ai.djl.nn.core.Linear;
+import ai.djl.training.DefaultTrainingConfig;
+import ai.djl.training.Trainer;
+import ai.djl.training.loss.Loss;
+import ai.djl.util.Pair;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EmaCheckpointListenerTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void theAverageTracksThenDecaysTowardsTheParameters() throws IOException, MalformedModelException {
+        EmaCheckpointListener listener = EmaCheckpointListener.builder()
+                .setDirectory(directory)
+                .optDecay(0.5f)
+                .optUpdateEvery(1)
+                .optStartStep(2)
+                .optSaveEvery(1000)
+                .build();
+        try (Model model = model(1); Trainer trainer = trainer(model)) {
+            listener.onTrainingBegin(trainer);
+            // step 1 copies the parameters, steps 2 and 3 average: 0.5 * (1 - 3) + 3, then 0.5 * (2 - 5) + 5
+            for (float value : new float[]{1, 3, 5}) {
+                fill(model.getBlock(), value);
+                listener.onTrainingBatch(trainer, null);
+            }
+            listener.onTrainingEnd(trainer);
+        } finally {
+            listener.close();
+        }
+
+        Path checkpoint = directory.resolve("ema-3" + EmaCheckpointListener.SUFFIX);
+        assertTrue(Files.exists(checkpoint));
+        try (Model restored = model(1)) {
+            assertEquals(3, EmaCheckpointListener.restore(checkpoint, restored.getBlock()));
+            for (Pair<String, Parameter> pair : restored.getBlock().getParameters()) {
+                assertArrayEquals(new float[]{3.5f}, pair.getValue().getArray().toFloatArray(), 1e-6f, pair.getKey());
+            }
+        }
+    }
+
+    @Test
+    void savingContinuesAfterTheEndOfTrainingUntilClosed() throws IOException {
+        EmaCheckpointListener listener = EmaCheckpointListener.builder()
+                .setDirectory(directory)
+                .optName("run")
+                .optUpdateEvery(1)
+                .optStartStep(0)
+                .optSaveEvery(2)
+                .build();
+        try (Model model = model(1); Trainer trainer = trainer(model)) {
+            assertThrows(IllegalStateException.class, listener::save);
+            listener.onTrainingBegin(trainer);
+            listener.onTrainingBatch(trainer, null);
+            listener.onTrainingEnd(trainer);
+
+            // a manual checkpoint, then a second fit on the same trainer
+            assertTrue(listener.save());
+            listener.onTrainingBegin(trainer);
+            listener.onTrainingBatch(trainer, null);
+            listener.onTrainingBatch(trainer, null);
+            listener.onTrainingEnd(trainer);
+
+            listener.close();
+            assertThrows(IllegalStateException.class, listener::save);
+        }
+        assertTrue(Files.exists(directory.resolve("run-1" + EmaCheckpointListener.SUFFIX)));
+        assertTrue(Files.exists(directory.resolve("run-2" + EmaCheckpointListener.SUFFIX)));
+    }
+
+    @Test
+    void restoreRejectsAMismatchedBlock() throws IOException {
+        EmaCheckpointListener listener = EmaCheckpointListener.builder().setDirectory(directory).build();
+        try (Model model = model(1); Trainer trainer = trainer(model)) {
+            listener.onTrainingBegin(trainer);
+            listener.onTrainingBatch(trainer, null);
+            listener.onTrainingEnd(trainer);
+        } finally {
+            listener.close();
+        }
+        try (Model other = model(2)) {
+            assertThrows(MalformedModelException.class, () -> EmaCheckpointListener.restore(
+                    directory.resolve("ema-1" + EmaCheckpointListener.SUFFIX), other.getBlock()));
+        }
+    }
+
+    private static Model model(int inputs) {
+        Model model = Model.newInstance("ema");
+        Block block = Linear.builder().setUnits(1).build();
+        model.setBlock(block);
+        block.initialize(model.getNDManager(), DataType.FLOAT32, new Shape(1, inputs));
+        return model;
+    }
+
+    private static Trainer trainer(Model model) {
+        return model.newTrainer(new DefaultTrainingConfig(Loss.l2Loss()));
+    }
+
+    private static void fill(Block block, float value) {
+        for (Pair<String, Parameter> pair : block.getParameters()) {
+            pair.getValue().getArray().muli(0).addi(value);
+        }
+    }
+}